@@ -0,0 +1,25 @@
+/*
+Benchmark of escaping names for Drive queries.
+ */
+
+package examgenerator;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EscapeBenchmark {
+    @Param({"Smith_John_12345678", "O'Brien_Mary-Kate \"MK\"_23456789"})
+    private String name;
+
+    @Benchmark
+    public String escape() {
+        return ExamGenerator.escape(name);
+    }
+}
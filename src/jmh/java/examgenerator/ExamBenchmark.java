@@ -0,0 +1,50 @@
+/*
+Benchmarks of picking each student's question variants, both the original independent picks and the balanced
+allocator used when generating.
+ */
+
+package examgenerator;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExamBenchmark {
+    @Param({"12", "50"})
+    private int questions;
+
+    @Param({"4"})
+    private int variants;
+
+    private Exam exam;
+    private Question question;
+
+    @Setup
+    public void setUp() {
+        exam = new Exam();
+        for (int q = 1; q <= questions; q++) {
+            Question question = new Question();
+            for (int v = 1; v <= variants; v++)
+                question.addVariant("Q" + q + "V" + v, "id-" + q + "-" + v);
+            exam.addQuestion(question);
+        }
+        question = exam.getQuestions().get(0);
+    }
+
+    @Benchmark
+    public List<Question.QuestionVariant> generateExamVariant() {
+        return exam.generateExamVariant();
+    }
+
+    @Benchmark
+    public Question.QuestionVariant pickVariant() {
+        return question.pickVariant();
+    }
+}
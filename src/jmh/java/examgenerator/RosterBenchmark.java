@@ -0,0 +1,45 @@
+/*
+Benchmark of turning ClassList rows into students, as done for every row of the roster.
+ */
+
+package examgenerator;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RosterBenchmark {
+    @Param({"600"})
+    private int students;
+
+    private List<List<Object>> rows;
+
+    @Setup
+    public void setUp() {
+        rows = new ArrayList<>();
+        for (int i = 0; i < students; i++) {
+            List<Object> row = new ArrayList<>(Arrays.asList(String.valueOf(10000000 + i), "Last" + i, "First" + i,
+                    "", "", "", "", "student" + i + "@example.edu"));
+            // One in ten students gets extra time.
+            if (i % 10 == 0)
+                row.addAll(Arrays.asList("", "", "", "90"));
+            rows.add(row);
+        }
+    }
+
+    @Benchmark
+    public void parseRows(Blackhole bh) {
+        for (List<Object> row : rows)
+            bh.consume(Roster.parseRow(row));
+    }
+}
@@ -0,0 +1,48 @@
+/*
+Benchmark of the bookkeeping for a timed share: working out every student's deadline, scheduling them all, and
+cancelling them again.
+ */
+
+package examgenerator;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShareDeadlineBenchmark {
+    @Param({"600"})
+    private int students;
+
+    private List<Student> roster;
+
+    @Setup
+    public void setUp() {
+        roster = new ArrayList<>();
+        for (int i = 0; i < students; i++)
+            roster.add(new Student(String.valueOf(10000000 + i), "Last" + i, "First" + i, "student" + i + "@example.edu", i % 10 == 0 ? "90" : null));
+    }
+
+    @Benchmark
+    public Map<Student, Long> deadlines() {
+        return ExamGenerator.deadlines(roster, System.currentTimeMillis(), 60);
+    }
+
+    @Benchmark
+    public boolean scheduleAndCancel() {
+        UnshareScheduler scheduler = new UnshareScheduler((students, rejected) -> new HashSet<>(students));
+        ExamGenerator.deadlines(roster, System.currentTimeMillis(), 60).forEach(scheduler::schedule);
+        roster.forEach(scheduler::cancel);
+        scheduler.shutdown();
+        return scheduler.hasPending();
+    }
+}
@@ -0,0 +1,54 @@
+/*
+Benchmark of building a full batch of share and unshare requests, with the same requests and callbacks sharing and
+unsharing use. Nothing is sent: the Drive client is given a mock transport.
+ */
+
+package examgenerator;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.services.drive.Drive;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShareRequestBenchmark {
+    private Drive driveService;
+    private final Map<Student, String> examIds = new LinkedHashMap<>();
+    private final Map<Student, String> permissionIds = new LinkedHashMap<>();
+
+    @Setup
+    public void setUp() {
+        driveService = new Drive.Builder(new MockHttpTransport(), JacksonFactory.getDefaultInstance(), null)
+                .setApplicationName("Exam Generator Benchmark")
+                .build();
+        for (int i = 0; i < Utils.MAX_BATCH_SIZE; i++) {
+            Student s = new Student(String.valueOf(10000000 + i), "Last" + i, "First" + i, "student" + i + "@example.edu", null);
+            examIds.put(s, "exam-folder-" + i);
+            permissionIds.put(s, "permission-" + i);
+        }
+    }
+
+    @Benchmark
+    public List<BatchRequest> shareBatch() throws IOException {
+        return Utils.buildBatches(driveService, examIds.keySet(), Utils.MAX_BATCH_SIZE,
+                ExamGenerator.shareRequest(examIds, driveService));
+    }
+
+    @Benchmark
+    public List<BatchRequest> unshareBatch() throws IOException {
+        return Utils.buildBatches(driveService, permissionIds.keySet(), Utils.MAX_BATCH_SIZE,
+                ExamGenerator.unshareRequest(examIds, permissionIds, driveService));
+    }
+}
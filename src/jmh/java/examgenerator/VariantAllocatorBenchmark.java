@@ -0,0 +1,38 @@
+/*
+Benchmarks of allocating variants for a whole class at once.
+ */
+
+package examgenerator;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VariantAllocatorBenchmark {
+    @Param({"600", "100000"})
+    private int students;
+
+    @Param({"false", "true"})
+    private boolean spread;
+
+    private VariantAllocator allocator;
+
+    @Setup
+    public void setUp() {
+        int[] variantCounts = new int[50];
+        Arrays.fill(variantCounts, 4);
+        allocator = new VariantAllocator(VariantAllocator.seedFor("benchmark"), variantCounts, spread);
+    }
+
+    @Benchmark
+    public int[] allocate() {
+        return allocator.allocate(students);
+    }
+}
@@ -0,0 +1,1195 @@
+/*
+FakeGoogleBackend.java
+
+An in-process stand-in for the parts of Drive and Sheets that ExamGenerator uses. It sits underneath the real client
+libraries as their HttpTransport, so everything above it (request building, batching, retries, parsing) is the code that
+runs against Google. It emulates:
+
+- Drive files.list (with the query language ExamGenerator uses: and/or/not, parentheses, =, !=, contains and in parents,
+  and paging), files.get/create/copy/update, permissions.create/list/delete, changes and the batch endpoint, as well as
+  multipart uploads, downloads and exporting a Doc to PDF.
+- Sheets spreadsheets.create/get and values get/update/append/batchUpdate.
+- Docs documents.get and batchUpdate, checking that every range in an update is inside the document as it stands.
+
+Every request waits out a configurable latency, and can be failed with a 429 or 5xx at configurable rates or with a 403
+once the per-100-second quota is used up, as Google does. Calls are counted per operation, and the times each email is
+granted and loses access are recorded so the load test can work out how late revocations were.
+ */
+
+package examgenerator;
+
+import com.google.api.client.http.HttpMediaType;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.docs.v1.model.BatchUpdateDocumentRequest;
+import com.google.api.services.docs.v1.model.BatchUpdateDocumentResponse;
+import com.google.api.services.docs.v1.model.Body;
+import com.google.api.services.docs.v1.model.Bullet;
+import com.google.api.services.docs.v1.model.Document;
+import com.google.api.services.docs.v1.model.ListProperties;
+import com.google.api.services.docs.v1.model.NestingLevel;
+import com.google.api.services.docs.v1.model.Paragraph;
+import com.google.api.services.docs.v1.model.ParagraphElement;
+import com.google.api.services.docs.v1.model.ParagraphStyle;
+import com.google.api.services.docs.v1.model.Request;
+import com.google.api.services.docs.v1.model.SectionBreak;
+import com.google.api.services.docs.v1.model.StructuralElement;
+import com.google.api.services.docs.v1.model.Table;
+import com.google.api.services.docs.v1.model.TextRun;
+import com.google.api.services.docs.v1.model.TextStyle;
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.ChangeList;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+import com.google.api.services.drive.model.Permission;
+import com.google.api.services.drive.model.PermissionList;
+import com.google.api.services.drive.model.StartPageToken;
+import com.google.api.services.sheets.v4.model.AppendValuesResponse;
+import com.google.api.services.sheets.v4.model.BatchUpdateValuesRequest;
+import com.google.api.services.sheets.v4.model.BatchUpdateValuesResponse;
+import com.google.api.services.sheets.v4.model.Sheet;
+import com.google.api.services.sheets.v4.model.SheetProperties;
+import com.google.api.services.sheets.v4.model.Spreadsheet;
+import com.google.api.services.sheets.v4.model.SpreadsheetProperties;
+import com.google.api.services.sheets.v4.model.UpdateValuesResponse;
+import com.google.api.services.sheets.v4.model.ValueRange;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+
+public class FakeGoogleBackend extends HttpTransport {
+    private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+    private static final String FOLDER_MIME_TYPE = "application/vnd.google-apps.folder";
+    private static final String SPREADSHEET_MIME_TYPE = "application/vnd.google-apps.spreadsheet";
+    private static final String DOCUMENT_MIME_TYPE = "application/vnd.google-apps.document";
+    private static final String OWNER = "owner@example.edu";
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final long QUOTA_WINDOW_MILLIS = 100000;
+    private static final Pattern A1 = Pattern.compile("([A-Z]*)(\\d*)(?::([A-Z]*)(\\d*))?");
+
+    private final long latencyMillis;
+    private final double rateLimitedRate;
+    private final double serverErrorRate;
+    private final int quotaPer100s;
+    private final Random random;
+
+    // Drive and Sheets state, guarded by this.
+    private final Map<String, FakeFile> files = new LinkedHashMap<>();
+    private final List<String> changes = new ArrayList<>();
+    private long nextId = 1;
+
+    private final Map<String, Quota> quotas = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> calls = new ConcurrentSkipListMap<>();
+    private final Map<String, Long> granted = new ConcurrentHashMap<>();
+    private final Map<String, Long> revoked = new ConcurrentHashMap<>();
+
+    private static final class FakeFile {
+        final String id;
+        String name, mimeType;
+        List<String> parents;
+        boolean trashed;
+        Map<String, String> appProperties;
+        long modifiedTime = System.currentTimeMillis();
+        final Map<String, Permission> permissions = new LinkedHashMap<>();
+        // A spreadsheet's tabs, each a list of rows.
+        final Map<String, List<List<Object>>> tabs = new LinkedHashMap<>();
+        // A document's content as it was seeded, and its text as edited since (starting at index 1, as in Docs).
+        Document document;
+        StringBuilder text = new StringBuilder("\n");
+        // An uploaded file's content.
+        byte[] content;
+
+        FakeFile(String id, String name, String mimeType, List<String> parents) {
+            this.id = id;
+            this.name = name;
+            this.mimeType = mimeType;
+            this.parents = new ArrayList<>(parents);
+        }
+
+        File toFile() {
+            return new File()
+                    .setId(id)
+                    .setName(name)
+                    .setMimeType(mimeType)
+                    .setParents(new ArrayList<>(parents))
+                    .setTrashed(trashed)
+                    .setAppProperties(appProperties == null ? null : new LinkedHashMap<>(appProperties))
+                    .setModifiedTime(new DateTime(modifiedTime));
+        }
+    }
+
+    /**
+     * Calls made in a fixed 100 second window, like Google's per-user quotas.
+     */
+    private static final class Quota {
+        long windowStart = System.currentTimeMillis();
+        int used, peak;
+    }
+
+    /**
+     * An error response, with the reason Google would give for it.
+     */
+    private static final class ApiError extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final int code;
+        final String reason;
+
+        ApiError(int code, String reason, String message) {
+            super(message);
+            this.code = code;
+            this.reason = reason;
+        }
+    }
+
+    private static final class Reply {
+        final int code;
+        final String json;
+        final Media media;
+
+        Reply(int code, String json) {
+            this(code, json, null);
+        }
+
+        Reply(int code, String json, Media media) {
+            this.code = code;
+            this.json = json;
+            this.media = media;
+        }
+    }
+
+    /**
+     * A file's content (or an export of it) returned in place of JSON.
+     */
+    private static final class Media {
+        final String type;
+        final byte[] content;
+
+        Media(String type, byte[] content) {
+            this.type = type;
+            this.content = content;
+        }
+    }
+
+    /**
+     * @param latencyMillis how long each HTTP request takes, give or take half.
+     * @param rateLimitedRate the fraction of calls failed with a 429.
+     * @param serverErrorRate the fraction of calls failed with a 500 or 503.
+     * @param quotaPer100s how many calls each service allows per 100 seconds before failing them, or 0 for no limit.
+     */
+    public FakeGoogleBackend(long latencyMillis, double rateLimitedRate, double serverErrorRate, int quotaPer100s, long seed) {
+        this.latencyMillis = latencyMillis;
+        this.rateLimitedRate = rateLimitedRate;
+        this.serverErrorRate = serverErrorRate;
+        this.quotaPer100s = quotaPer100s;
+        this.random = new Random(seed);
+        files.put("root", new FakeFile("root", "My Drive", FOLDER_MIME_TYPE, Collections.emptyList()));
+    }
+
+    @Override
+    public boolean supportsMethod(String method) {
+        return true;
+    }
+
+    @Override
+    protected LowLevelHttpRequest buildRequest(String method, String url) {
+        return new MockLowLevelHttpRequest(url) {
+            @Override
+            public LowLevelHttpResponse execute() throws IOException {
+                count("http.requests");
+                sleep();
+                String override = getFirstHeaderValue("X-HTTP-Method-Override");
+                String effective = override != null ? override : method;
+                MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+                if (URI.create(getUrl()).getPath().startsWith("/batch/")) {
+                    String boundary = "batch_" + Long.toHexString(random.nextLong());
+                    response.setContentType("multipart/mixed; boundary=" + boundary);
+                    response.setContent(batch(new HttpMediaType(getContentType()).getParameter("boundary"), body(this), boundary));
+                    return response;
+                }
+                String url = getUrl();
+                String body;
+                byte[] media = null;
+                if (URI.create(url).getPath().startsWith("/upload/")) {
+                    // A multipart upload: the file's metadata, then its content.
+                    List<byte[]> parts = multipart(new HttpMediaType(getContentType()).getParameter("boundary"), bytes(this));
+                    body = new String(parts.get(0), StandardCharsets.UTF_8);
+                    media = parts.get(1);
+                    url = url.replaceFirst("/upload/", "/");
+                } else {
+                    body = body(this);
+                }
+                Reply reply = handle(effective, url, body, media);
+                response.setStatusCode(reply.code);
+                if (reply.media != null) {
+                    response.setContentType(reply.media.type);
+                    response.setContent(reply.media.content);
+                } else if (reply.json != null) {
+                    response.setContentType("application/json; charset=UTF-8");
+                    response.setContent(reply.json);
+                }
+                return response;
+            }
+        };
+    }
+
+    private static byte[] bytes(MockLowLevelHttpRequest request) throws IOException {
+        if (request.getStreamingContent() == null)
+            return new byte[0];
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        request.getStreamingContent().writeTo(out);
+        InputStream in = new ByteArrayInputStream(out.toByteArray());
+        if (request.getContentEncoding() != null && request.getContentEncoding().contains("gzip"))
+            in = new GZIPInputStream(in);
+        return in.readAllBytes();
+    }
+
+    private static String body(MockLowLevelHttpRequest request) throws IOException {
+        return new String(bytes(request), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the content of each part of a multipart body, without its headers.
+     */
+    private static List<byte[]> multipart(String boundary, byte[] body) {
+        // ISO-8859-1 maps every byte to one char and back, so binary parts survive the round trip.
+        String raw = new String(body, StandardCharsets.ISO_8859_1);
+        List<byte[]> parts = new ArrayList<>();
+        for (String part : raw.split(Pattern.quote("--" + boundary))) {
+            int headersEnd = part.indexOf("\r\n\r\n");
+            if (part.startsWith("--") || headersEnd < 0)
+                continue;
+            String content = part.substring(headersEnd + 4);
+            if (content.endsWith("\r\n"))
+                content = content.substring(0, content.length() - 2);
+            parts.add(content.getBytes(StandardCharsets.ISO_8859_1));
+        }
+        return parts;
+    }
+
+    private void sleep() throws IOException {
+        if (latencyMillis <= 0)
+            return;
+        long jitter;
+        synchronized (random) {
+            jitter = (long) ((random.nextDouble() - 0.5) * latencyMillis);
+        }
+        try {
+            Thread.sleep(latencyMillis + jitter);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted.", e);
+        }
+    }
+
+    /**
+     * Answers each part of a multipart/mixed batch in turn, as Drive's batch endpoint does.
+     */
+    private String batch(String requestBoundary, String body, String boundary) {
+        count("http.batches");
+        StringBuilder out = new StringBuilder();
+        String[] parts = body.split(Pattern.quote("--" + requestBoundary));
+        int n = 0;
+        for (String part : parts) {
+            if (part.startsWith("--") || !part.contains("HTTP/1.1"))
+                continue;
+            // The part's own headers, then the request line and its headers, then the body.
+            String inner = part.substring(part.indexOf("\r\n\r\n") + 4);
+            int headersEnd = inner.indexOf("\r\n\r\n");
+            String[] head = inner.substring(0, headersEnd).split("\r\n");
+            String content = inner.substring(headersEnd + 4);
+            if (content.endsWith("\r\n"))
+                content = content.substring(0, content.length() - 2);
+
+            String[] requestLine = head[0].split(" ");
+            String method = requestLine[0];
+            for (int i = 1; i < head.length; i++) {
+                if (head[i].toLowerCase().startsWith("x-http-method-override:"))
+                    method = head[i].substring(head[i].indexOf(':') + 1).trim();
+            }
+
+            Reply reply = handle(method, requestLine[1], content, null);
+            byte[] json = reply.json == null ? new byte[0] : reply.json.getBytes(StandardCharsets.UTF_8);
+            out.append("--").append(boundary).append("\r\n")
+                    .append("Content-Type: application/http\r\n")
+                    .append("Content-ID: <response-").append(++n).append(">\r\n\r\n")
+                    .append("HTTP/1.1 ").append(reply.code).append(reply.code < 300 ? " OK" : " Error").append("\r\n")
+                    .append("Content-Type: application/json; charset=UTF-8\r\n")
+                    .append("Content-Length: ").append(json.length).append("\r\n\r\n")
+                    .append(reply.json == null ? "" : reply.json).append("\r\n");
+        }
+        return out.append("--").append(boundary).append("--\r\n").toString();
+    }
+
+    private Reply handle(String method, String url, String body, byte[] media) {
+        URI uri = URI.create(url);
+        List<String> path = new ArrayList<>();
+        for (String segment : uri.getRawPath().split("/")) {
+            if (!segment.isEmpty())
+                path.add(URLDecoder.decode(segment.replace("+", "%2B"), StandardCharsets.UTF_8));
+        }
+        Map<String, String> query = new HashMap<>();
+        if (uri.getRawQuery() != null) {
+            for (String param : uri.getRawQuery().split("&")) {
+                int eq = param.indexOf('=');
+                query.put(URLDecoder.decode(eq < 0 ? param : param.substring(0, eq), StandardCharsets.UTF_8),
+                        eq < 0 ? "" : URLDecoder.decode(param.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+
+        String service = uri.getHost().startsWith("sheets.") ? "sheets" : uri.getHost().startsWith("docs.") ? "docs" : "drive";
+        // Drive paths start drive/v3, Sheets paths v4 and Docs paths v1.
+        List<String> resource = path.subList(service.equals("drive") ? 2 : 1, path.size());
+        String operation = service + "." + operation(method, resource);
+        count(operation);
+        try {
+            admit(service);
+            Object result;
+            synchronized (this) {
+                if (service.equals("sheets"))
+                    result = sheets(operation, resource, query, body);
+                else if (service.equals("docs"))
+                    result = docs(operation, resource, body);
+                else
+                    result = drive(operation, resource, query, body, media);
+            }
+            if (result instanceof Media)
+                return new Reply(200, null, (Media) result);
+            return result == null ? new Reply(204, null) : new Reply(200, JSON_FACTORY.toString(result));
+        } catch (ApiError e) {
+            return error(e.code, e.reason, e.getMessage());
+        } catch (IOException | RuntimeException e) {
+            return error(400, "badRequest", String.valueOf(e.getMessage()));
+        }
+    }
+
+    private static String operation(String method, List<String> resource) {
+        String last = resource.isEmpty() ? "" : resource.get(resource.size() - 1);
+        switch (resource.isEmpty() ? "" : resource.get(0)) {
+            case "files":
+                if (resource.size() == 1)
+                    return method.equals("GET") ? "files.list" : "files.create";
+                if (resource.size() == 2)
+                    return method.equals("GET") ? "files.get" : method.equals("DELETE") ? "files.delete" : "files.update";
+                if (last.equals("copy"))
+                    return "files.copy";
+                if (resource.get(2).equals("permissions"))
+                    return resource.size() == 4 ? "permissions.delete" : method.equals("GET") ? "permissions.list" : "permissions.create";
+                return "files." + last;
+            case "changes":
+                return last.equals("startPageToken") ? "changes.getStartPageToken" : "changes.list";
+            case "documents":
+                if (resource.size() == 1)
+                    return "documents.create";
+                return last.endsWith(":batchUpdate") ? "documents.batchUpdate" : "documents.get";
+            case "spreadsheets":
+                if (resource.size() == 1)
+                    return "spreadsheets.create";
+                if (resource.size() == 2)
+                    return "spreadsheets.get";
+                if (last.equals("values:batchUpdate"))
+                    return "values.batchUpdate";
+                if (last.endsWith(":append"))
+                    return "values.append";
+                return method.equals("GET") ? "values.get" : "values.update";
+            default:
+                return method + " " + String.join("/", resource);
+        }
+    }
+
+    /**
+     * Fails the call if the service's quota is used up, or at random at the configured error rates.
+     */
+    private void admit(String service) throws ApiError {
+        Quota quota = quotas.computeIfAbsent(service, s -> new Quota());
+        synchronized (quota) {
+            long now = System.currentTimeMillis();
+            if (now - quota.windowStart >= QUOTA_WINDOW_MILLIS) {
+                quota.windowStart = now;
+                quota.used = 0;
+            }
+            if (quotaPer100s > 0 && quota.used >= quotaPer100s) {
+                count("fault.quotaExceeded");
+                throw new ApiError(403, "userRateLimitExceeded", "User Rate Limit Exceeded.");
+            }
+            quota.peak = Math.max(quota.peak, ++quota.used);
+        }
+        double roll;
+        synchronized (random) {
+            roll = random.nextDouble();
+        }
+        if (roll < rateLimitedRate) {
+            count("fault.rateLimited");
+            throw new ApiError(429, "rateLimitExceeded", "Rate Limit Exceeded");
+        }
+        if (roll < rateLimitedRate + serverErrorRate) {
+            count("fault.serverError");
+            throw roll < rateLimitedRate + serverErrorRate / 2
+                    ? new ApiError(500, "backendError", "Backend Error")
+                    : new ApiError(503, "backendError", "Service Unavailable");
+        }
+    }
+
+    private static Reply error(int code, String reason, String message) {
+        GenericJson detail = new GenericJson();
+        detail.set("domain", code == 403 || code == 429 ? "usageLimits" : "global");
+        detail.set("reason", reason);
+        detail.set("message", message);
+        GenericJson error = new GenericJson();
+        error.set("errors", Collections.singletonList(detail));
+        error.set("code", code);
+        error.set("message", message);
+        GenericJson json = new GenericJson();
+        json.set("error", error);
+        try {
+            return new Reply(code, JSON_FACTORY.toString(json));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void count(String operation) {
+        calls.computeIfAbsent(operation, o -> new AtomicLong()).incrementAndGet();
+    }
+
+    /* Drive */
+
+    private Object drive(String operation, List<String> resource, Map<String, String> query, String body, byte[] media) throws ApiError, IOException {
+        switch (operation) {
+            case "drive.files.list": {
+                Predicate<FakeFile> matches = query.containsKey("q") ? new QueryParser(query.get("q")).parse() : f -> true;
+                List<File> found = files.values().stream().filter(matches).map(FakeFile::toFile).collect(Collectors.toList());
+                int from = query.containsKey("pageToken") ? Integer.parseInt(query.get("pageToken")) : 0;
+                int to = Math.min(found.size(), from + pageSize(query));
+                return new FileList()
+                        .setFiles(new ArrayList<>(found.subList(from, to)))
+                        .setNextPageToken(to < found.size() ? String.valueOf(to) : null);
+            }
+            case "drive.files.create": {
+                File metadata = JSON_FACTORY.fromString(body, File.class);
+                FakeFile f = create(metadata.getName(), metadata.getMimeType() == null ? "application/octet-stream" : metadata.getMimeType(),
+                        metadata.getParents());
+                f.content = media;
+                return f.toFile();
+            }
+            case "drive.files.get": {
+                FakeFile f = file(resource.get(1));
+                if (!"media".equals(query.get("alt")))
+                    return f.toFile();
+                if (f.content == null)
+                    throw new ApiError(403, "fileNotDownloadable", "Only files with binary content can be downloaded. Use Export with Docs Editors files.");
+                return new Media(f.mimeType, f.content);
+            }
+            case "drive.files.export": {
+                FakeFile f = file(resource.get(1));
+                if (!f.mimeType.equals(DOCUMENT_MIME_TYPE))
+                    throw new ApiError(403, "fileNotExportable", "Export only supports Docs Editors files.");
+                if (!"application/pdf".equals(query.get("mimeType")))
+                    throw new ApiError(400, "badRequest", "The requested conversion is not supported.");
+                return new Media("application/pdf", pdf(f));
+            }
+            case "drive.files.update": {
+                FakeFile f = file(resource.get(1));
+                if (!body.isEmpty()) {
+                    File metadata = JSON_FACTORY.fromString(body, File.class);
+                    if (metadata.getName() != null)
+                        f.name = metadata.getName();
+                    if (metadata.getTrashed() != null)
+                        f.trashed = metadata.getTrashed();
+                }
+                touchParents(f);
+                for (String parent : split(query.get("removeParents")))
+                    f.parents.remove(parent);
+                for (String parent : split(query.get("addParents"))) {
+                    file(parent);
+                    if (!f.parents.contains(parent))
+                        f.parents.add(parent);
+                }
+                touchParents(f);
+                changed(f);
+                return f.toFile();
+            }
+            case "drive.files.copy": {
+                FakeFile source = file(resource.get(1));
+                File metadata = body.isEmpty() ? new File() : JSON_FACTORY.fromString(body, File.class);
+                FakeFile copy = create(metadata.getName() != null ? metadata.getName() : "Copy of " + source.name, source.mimeType,
+                        metadata.getParents() != null ? metadata.getParents() : source.parents);
+                source.tabs.forEach((tab, rows) -> copy.tabs.put(tab, copyRows(rows)));
+                copy.document = source.document;
+                copy.text = new StringBuilder(source.text);
+                copy.content = source.content;
+                copy.appProperties = metadata.getAppProperties();
+                return copy.toFile();
+            }
+            case "drive.permissions.create": {
+                FakeFile f = file(resource.get(1));
+                Permission permission = JSON_FACTORY.fromString(body, Permission.class)
+                        .setId("perm" + nextId++);
+                f.permissions.put(permission.getId(), permission);
+                if (permission.getEmailAddress() != null)
+                    granted.put(permission.getEmailAddress().toLowerCase(), System.currentTimeMillis());
+                changed(f);
+                return permission;
+            }
+            case "drive.permissions.list":
+                return new PermissionList().setPermissions(new ArrayList<>(file(resource.get(1)).permissions.values()));
+            case "drive.permissions.delete": {
+                FakeFile f = file(resource.get(1));
+                Permission permission = f.permissions.get(resource.get(3));
+                if (permission == null)
+                    throw new ApiError(404, "notFound", "Permission not found: " + resource.get(3) + ".");
+                if (permission.getRole().equals("owner"))
+                    throw new ApiError(403, "cannotRemoveOwner", "The owner of a file cannot be removed.");
+                f.permissions.remove(permission.getId());
+                if (permission.getEmailAddress() != null)
+                    revoked.put(permission.getEmailAddress().toLowerCase(), System.currentTimeMillis());
+                changed(f);
+                return null;
+            }
+            case "drive.changes.getStartPageToken":
+                return new StartPageToken().setStartPageToken(String.valueOf(changes.size()));
+            case "drive.changes.list": {
+                int from = Integer.parseInt(query.get("pageToken"));
+                int to = Math.min(changes.size(), from + pageSize(query));
+                List<Change> page = new ArrayList<>();
+                for (String id : changes.subList(from, to)) {
+                    FakeFile f = files.get(id);
+                    page.add(new Change().setFileId(id).setRemoved(f == null).setFile(f == null ? null : f.toFile()));
+                }
+                ChangeList list = new ChangeList().setChanges(page);
+                if (to < changes.size())
+                    list.setNextPageToken(String.valueOf(to));
+                else
+                    list.setNewStartPageToken(String.valueOf(to));
+                return list;
+            }
+            default:
+                throw new ApiError(404, "notFound", "No such operation: " + operation + ".");
+        }
+    }
+
+    private static int pageSize(Map<String, String> query) {
+        return query.containsKey("pageSize") ? Math.min(MAX_PAGE_SIZE, Integer.parseInt(query.get("pageSize"))) : DEFAULT_PAGE_SIZE;
+    }
+
+    private static List<String> split(String ids) {
+        if (ids == null)
+            return Collections.emptyList();
+        return Arrays.stream(ids.split(",")).filter(id -> !id.isEmpty()).collect(Collectors.toList());
+    }
+
+    private FakeFile file(String id) throws ApiError {
+        FakeFile f = files.get(id);
+        if (f == null)
+            throw new ApiError(404, "notFound", "File not found: " + id + ".");
+        return f;
+    }
+
+    private FakeFile create(String name, String mimeType, List<String> parents) throws ApiError {
+        List<String> in = parents == null || parents.isEmpty() ? Collections.singletonList("root") : parents;
+        for (String parent : in)
+            file(parent);
+        FakeFile f = new FakeFile("f" + nextId++, name, mimeType, in);
+        f.permissions.put("owner", new Permission().setId("owner").setRole("owner").setType("user").setEmailAddress(OWNER));
+        files.put(f.id, f);
+        touchParents(f);
+        changed(f);
+        return f;
+    }
+
+    private void touchParents(FakeFile f) {
+        long now = System.currentTimeMillis();
+        for (String parent : f.parents) {
+            FakeFile p = files.get(parent);
+            if (p != null) {
+                // Strictly later, so a cached modifiedTime never matches a folder which has changed since.
+                p.modifiedTime = Math.max(now, p.modifiedTime + 1);
+                changed(p);
+            }
+        }
+    }
+
+    private void changed(FakeFile f) {
+        f.modifiedTime = Math.max(System.currentTimeMillis(), f.modifiedTime);
+        changes.add(f.id);
+    }
+
+    /**
+     * A recursive descent parser for Drive's query language, as much of it as ExamGenerator uses.
+     */
+    private static final class QueryParser {
+        private final List<String> tokens = new ArrayList<>();
+        private int pos;
+
+        QueryParser(String q) {
+            int i = 0;
+            while (i < q.length()) {
+                char c = q.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (c == '\'') {
+                    // String literals are kept with their opening quote to tell them from keywords.
+                    StringBuilder literal = new StringBuilder("'");
+                    for (i++; q.charAt(i) != '\''; i++) {
+                        if (q.charAt(i) == '\\')
+                            i++;
+                        literal.append(q.charAt(i));
+                    }
+                    tokens.add(literal.toString());
+                    i++;
+                } else if (c == '(' || c == ')' || c == '=') {
+                    tokens.add(String.valueOf(c));
+                    i++;
+                } else if (q.startsWith("!=", i)) {
+                    tokens.add("!=");
+                    i += 2;
+                } else {
+                    int start = i;
+                    while (i < q.length() && (Character.isLetterOrDigit(q.charAt(i)) || q.charAt(i) == '_'))
+                        i++;
+                    if (start == i)
+                        throw new IllegalArgumentException("Unexpected '" + c + "' in query: " + q);
+                    tokens.add(q.substring(start, i));
+                }
+            }
+        }
+
+        Predicate<FakeFile> parse() {
+            Predicate<FakeFile> p = or();
+            if (pos != tokens.size())
+                throw new IllegalArgumentException("Unexpected " + tokens.get(pos) + " in query.");
+            return p;
+        }
+
+        private boolean accept(String token) {
+            if (pos < tokens.size() && tokens.get(pos).equalsIgnoreCase(token)) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private String next() {
+            if (pos == tokens.size())
+                throw new IllegalArgumentException("Query ends too early.");
+            return tokens.get(pos++);
+        }
+
+        private Predicate<FakeFile> or() {
+            Predicate<FakeFile> p = and();
+            while (accept("or"))
+                p = p.or(and());
+            return p;
+        }
+
+        private Predicate<FakeFile> and() {
+            Predicate<FakeFile> p = term();
+            while (accept("and"))
+                p = p.and(term());
+            return p;
+        }
+
+        private Predicate<FakeFile> term() {
+            if (accept("not"))
+                return term().negate();
+            if (accept("(")) {
+                Predicate<FakeFile> p = or();
+                if (!accept(")"))
+                    throw new IllegalArgumentException("Unbalanced parentheses in query.");
+                return p;
+            }
+            String first = next();
+            if (first.startsWith("'")) {
+                String value = first.substring(1);
+                if (!accept("in") || !accept("parents"))
+                    throw new IllegalArgumentException("Only 'id' in parents is supported.");
+                return f -> f.parents.contains(value);
+            }
+            String op = next();
+            String literal = next();
+            String value = literal.startsWith("'") ? literal.substring(1) : literal;
+            Predicate<FakeFile> p;
+            switch (first) {
+                case "name":
+                    p = op.equals("contains") ? f -> f.name.contains(value) : f -> f.name.equals(value);
+                    break;
+                case "mimeType":
+                    p = op.equals("contains") ? f -> f.mimeType.contains(value) : f -> f.mimeType.equals(value);
+                    break;
+                case "parents":
+                    p = f -> f.parents.contains(value);
+                    break;
+                case "trashed":
+                    p = f -> f.trashed == Boolean.parseBoolean(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported query field " + first + ".");
+            }
+            return op.equals("!=") ? p.negate() : p;
+        }
+    }
+
+    /* Sheets */
+
+    private Object sheets(String operation, List<String> resource, Map<String, String> query, String body) throws ApiError, IOException {
+        switch (operation) {
+            case "sheets.spreadsheets.create": {
+                Spreadsheet request = JSON_FACTORY.fromString(body, Spreadsheet.class);
+                String title = request.getProperties() != null && request.getProperties().getTitle() != null
+                        ? request.getProperties().getTitle() : "Untitled spreadsheet";
+                FakeFile f = create(title, SPREADSHEET_MIME_TYPE, null);
+                if (request.getSheets() != null) {
+                    for (Sheet sheet : request.getSheets())
+                        f.tabs.put(sheet.getProperties().getTitle(), new ArrayList<>());
+                }
+                if (f.tabs.isEmpty())
+                    f.tabs.put("Sheet1", new ArrayList<>());
+                return spreadsheet(f);
+            }
+            case "sheets.spreadsheets.get":
+                return spreadsheet(spreadsheetFile(resource.get(1)));
+            case "sheets.values.get": {
+                FakeFile f = spreadsheetFile(resource.get(1));
+                Range range = range(f, resource.get(3));
+                List<List<Object>> values = new ArrayList<>();
+                List<List<Object>> rows = f.tabs.get(range.tab);
+                for (int r = range.firstRow; r <= Math.min(range.lastRow, rows.size()); r++) {
+                    List<Object> row = rows.get(r - 1);
+                    List<Object> cells = new ArrayList<>();
+                    for (int c = range.firstColumn; c <= Math.min(range.lastColumn, row.size()); c++)
+                        cells.add(row.get(c - 1));
+                    values.add(trim(cells));
+                }
+                // Like Sheets, trailing empty rows aren't returned, and neither are values if there are none.
+                while (!values.isEmpty() && values.get(values.size() - 1).isEmpty())
+                    values.remove(values.size() - 1);
+                return new ValueRange()
+                        .setRange(resource.get(3))
+                        .setMajorDimension("ROWS")
+                        .setValues(values.isEmpty() ? null : values);
+            }
+            case "sheets.values.update": {
+                FakeFile f = spreadsheetFile(resource.get(1));
+                ValueRange values = JSON_FACTORY.fromString(body, ValueRange.class);
+                return write(f, range(f, resource.get(3)), values.getValues());
+            }
+            case "sheets.values.append": {
+                FakeFile f = spreadsheetFile(resource.get(1));
+                String a1 = resource.get(3);
+                Range range = range(f, a1.substring(0, a1.length() - ":append".length()));
+                List<List<Object>> rows = f.tabs.get(range.tab);
+                int last = rows.size();
+                while (last > 0 && trim(rows.get(last - 1)).isEmpty())
+                    last--;
+                range.firstRow = last + 1;
+                ValueRange values = JSON_FACTORY.fromString(body, ValueRange.class);
+                return new AppendValuesResponse()
+                        .setSpreadsheetId(f.id)
+                        .setUpdates(write(f, range, values.getValues()));
+            }
+            case "sheets.values.batchUpdate": {
+                FakeFile f = spreadsheetFile(resource.get(1));
+                BatchUpdateValuesRequest request = JSON_FACTORY.fromString(body, BatchUpdateValuesRequest.class);
+                int rows = 0, cells = 0;
+                List<UpdateValuesResponse> responses = new ArrayList<>();
+                for (ValueRange data : request.getData()) {
+                    UpdateValuesResponse response = write(f, range(f, data.getRange()), data.getValues());
+                    rows += response.getUpdatedRows();
+                    cells += response.getUpdatedCells();
+                    responses.add(response);
+                }
+                return new BatchUpdateValuesResponse()
+                        .setSpreadsheetId(f.id)
+                        .setTotalUpdatedRows(rows)
+                        .setTotalUpdatedCells(cells)
+                        .setResponses(responses);
+            }
+            default:
+                throw new ApiError(404, "notFound", "No such operation: " + operation + ".");
+        }
+    }
+
+    private FakeFile spreadsheetFile(String id) throws ApiError {
+        FakeFile f = file(id);
+        if (!f.mimeType.equals(SPREADSHEET_MIME_TYPE))
+            throw new ApiError(400, "failedPrecondition", "This operation is not supported for this document.");
+        return f;
+    }
+
+    private static Spreadsheet spreadsheet(FakeFile f) {
+        List<Sheet> sheets = new ArrayList<>();
+        int index = 0;
+        for (String tab : f.tabs.keySet())
+            sheets.add(new Sheet().setProperties(new SheetProperties().setTitle(tab).setIndex(index).setSheetId(index++)));
+        return new Spreadsheet()
+                .setSpreadsheetId(f.id)
+                .setProperties(new SpreadsheetProperties().setTitle(f.name))
+                .setSheets(sheets);
+    }
+
+    private static final class Range {
+        String tab;
+        int firstRow = 1, firstColumn = 1, lastRow = Integer.MAX_VALUE, lastColumn = Integer.MAX_VALUE;
+    }
+
+    /**
+     * Reads an A1 range: a tab on its own, or cells optionally preceded by a (possibly quoted) tab and a '!'.
+     */
+    private static Range range(FakeFile f, String a1) throws ApiError {
+        Range range = new Range();
+        String cells;
+        if (a1.startsWith("'")) {
+            int close = 1;
+            StringBuilder tab = new StringBuilder();
+            while (true) {
+                if (close >= a1.length())
+                    throw new ApiError(400, "badRequest", "Unable to parse range: " + a1);
+                if (a1.charAt(close) == '\'') {
+                    if (close + 1 < a1.length() && a1.charAt(close + 1) == '\'') {
+                        tab.append('\'');
+                        close += 2;
+                        continue;
+                    }
+                    break;
+                }
+                tab.append(a1.charAt(close++));
+            }
+            range.tab = tab.toString();
+            cells = close + 1 < a1.length() ? a1.substring(close + 2) : "";
+        } else if (a1.contains("!")) {
+            range.tab = a1.substring(0, a1.indexOf('!'));
+            cells = a1.substring(a1.indexOf('!') + 1);
+        } else if (f.tabs.containsKey(a1)) {
+            range.tab = a1;
+            cells = "";
+        } else {
+            range.tab = f.tabs.keySet().iterator().next();
+            cells = a1;
+        }
+        if (!f.tabs.containsKey(range.tab))
+            throw new ApiError(400, "badRequest", "Unable to parse range: " + a1);
+
+        if (!cells.isEmpty()) {
+            Matcher m = A1.matcher(cells);
+            if (!m.matches())
+                throw new ApiError(400, "badRequest", "Unable to parse range: " + a1);
+            if (!m.group(1).isEmpty())
+                range.firstColumn = column(m.group(1));
+            if (!m.group(2).isEmpty())
+                range.firstRow = Integer.parseInt(m.group(2));
+            if (m.group(3) == null) {
+                // A single cell.
+                range.lastColumn = range.firstColumn;
+                range.lastRow = m.group(2).isEmpty() ? Integer.MAX_VALUE : range.firstRow;
+            } else {
+                if (!m.group(3).isEmpty())
+                    range.lastColumn = column(m.group(3));
+                if (!m.group(4).isEmpty())
+                    range.lastRow = Integer.parseInt(m.group(4));
+            }
+        }
+        return range;
+    }
+
+    private static int column(String letters) {
+        int column = 0;
+        for (char c : letters.toCharArray())
+            column = column * 26 + (c - 'A' + 1);
+        return column;
+    }
+
+    /**
+     * Writes the values into the tab starting at the range's top left cell.
+     */
+    private UpdateValuesResponse write(FakeFile f, Range range, List<List<Object>> values) {
+        List<List<Object>> rows = f.tabs.get(range.tab);
+        int cells = 0;
+        List<List<Object>> in = values == null ? Collections.emptyList() : values;
+        for (int i = 0; i < in.size(); i++) {
+            int r = range.firstRow + i;
+            while (rows.size() < r)
+                rows.add(new ArrayList<>());
+            List<Object> row = rows.get(r - 1);
+            for (int j = 0; j < in.get(i).size(); j++) {
+                int c = range.firstColumn + j;
+                while (row.size() < c)
+                    row.add("");
+                Object value = in.get(i).get(j);
+                row.set(c - 1, value == null ? "" : value.toString());
+                cells++;
+            }
+        }
+        changed(f);
+        return new UpdateValuesResponse()
+                .setSpreadsheetId(f.id)
+                .setUpdatedRange(range.tab + "!R" + range.firstRow + "C" + range.firstColumn)
+                .setUpdatedRows(in.size())
+                .setUpdatedCells(cells);
+    }
+
+    private static List<Object> trim(List<Object> row) {
+        int end = row.size();
+        while (end > 0 && (row.get(end - 1) == null || row.get(end - 1).toString().isEmpty()))
+            end--;
+        return new ArrayList<>(row.subList(0, end));
+    }
+
+    private static List<List<Object>> copyRows(List<List<Object>> rows) {
+        return rows.stream().map(ArrayList::new).collect(Collectors.toList());
+    }
+
+    /* Docs */
+
+    private Object docs(String operation, List<String> resource, String body) throws ApiError, IOException {
+        switch (operation) {
+            case "docs.documents.get": {
+                FakeFile f = documentFile(resource.get(1));
+                Document document = f.document != null ? f.document.clone() : new Document().setBody(new Body().setContent(Arrays.asList(
+                        new StructuralElement().setSectionBreak(new SectionBreak()),
+                        paragraph("NORMAL_TEXT", null, 0, run("\n", null)))));
+                return document.setDocumentId(f.id).setTitle(f.name);
+            }
+            case "docs.documents.batchUpdate": {
+                String id = resource.get(1);
+                FakeFile f = documentFile(id.substring(0, id.indexOf(':')));
+                BatchUpdateDocumentRequest request = JSON_FACTORY.fromString(body, BatchUpdateDocumentRequest.class);
+                // Applied to a copy, so a bad request changes nothing, as in Docs.
+                StringBuilder text = new StringBuilder(f.text);
+                for (Request r : request.getRequests())
+                    apply(text, r);
+                f.text = text;
+                changed(f);
+                return new BatchUpdateDocumentResponse().setDocumentId(f.id);
+            }
+            default:
+                throw new ApiError(404, "notFound", "No such operation: " + operation + ".");
+        }
+    }
+
+    private FakeFile documentFile(String id) throws ApiError {
+        FakeFile f = file(id);
+        if (!f.mimeType.equals(DOCUMENT_MIME_TYPE))
+            throw new ApiError(400, "failedPrecondition", "This operation is not supported for this document.");
+        return f;
+    }
+
+    private static void apply(StringBuilder text, Request r) throws ApiError {
+        if (r.getInsertText() != null) {
+            int index = r.getInsertText().getLocation().getIndex();
+            // Text can go anywhere before the final newline.
+            if (index < 1 || index > text.length())
+                throw new ApiError(400, "badRequest", "Index " + index + " must be less than the end index of the referenced segment, " + (text.length() + 1) + ".");
+            text.insert(index - 1, r.getInsertText().getText());
+        } else if (r.getUpdateTextStyle() != null) {
+            check(text, r.getUpdateTextStyle().getRange());
+        } else if (r.getUpdateParagraphStyle() != null) {
+            check(text, r.getUpdateParagraphStyle().getRange());
+        } else if (r.getCreateParagraphBullets() != null) {
+            com.google.api.services.docs.v1.model.Range range = r.getCreateParagraphBullets().getRange();
+            check(text, range);
+            // Each paragraph in the range loses its leading tabs, which become its nesting level.
+            int i = range.getStartIndex() - 1, end = range.getEndIndex() - 1;
+            while (i > 0 && text.charAt(i - 1) != '\n')
+                i--;
+            while (i < end && i < text.length()) {
+                int tabs = 0;
+                while (i + tabs < text.length() && text.charAt(i + tabs) == '\t')
+                    tabs++;
+                text.delete(i, i + tabs);
+                end -= tabs;
+                int newline = text.indexOf("\n", i);
+                if (newline < 0)
+                    break;
+                i = newline + 1;
+            }
+        } else {
+            throw new ApiError(400, "badRequest", "Unsupported request: " + r.keySet() + ".");
+        }
+    }
+
+    private static void check(StringBuilder text, com.google.api.services.docs.v1.model.Range range) throws ApiError {
+        if (range == null || range.getStartIndex() == null || range.getEndIndex() == null
+                || range.getStartIndex() < 1 || range.getStartIndex() >= range.getEndIndex() || range.getEndIndex() > text.length() + 1)
+            throw new ApiError(400, "badRequest", "Invalid range " + range + " in a document of length " + (text.length() + 1) + ".");
+    }
+
+    /**
+     * Renders the document's text as a one-page PDF, a line per paragraph.
+     */
+    private static byte[] pdf(FakeFile f) throws IOException {
+        List<String> lines = new ArrayList<>();
+        if (f.document != null) {
+            for (StructuralElement element : f.document.getBody().getContent()) {
+                if (element.getParagraph() == null)
+                    continue;
+                StringBuilder line = new StringBuilder();
+                for (ParagraphElement pe : element.getParagraph().getElements()) {
+                    if (pe.getTextRun() != null)
+                        line.append(pe.getTextRun().getContent());
+                }
+                lines.add(line.toString());
+            }
+        } else {
+            lines.addAll(Arrays.asList(f.text.toString().split("\n")));
+        }
+
+        try (PDDocument pdf = new PDDocument()) {
+            PDPage page = new PDPage();
+            pdf.addPage(page);
+            try (PDPageContentStream content = new PDPageContentStream(pdf, page)) {
+                content.beginText();
+                content.setFont(PDType1Font.HELVETICA, 12);
+                content.setLeading(16);
+                content.newLineAtOffset(72, 720);
+                for (String line : lines) {
+                    // Kept to printable ASCII, which the standard fonts can show, so tabs and newlines become spaces.
+                    content.showText(line.replaceAll("[^\\x20-\\x7E]", " "));
+                    content.newLine();
+                }
+                content.endText();
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            pdf.save(out);
+            return out.toByteArray();
+        }
+    }
+
+    private static StructuralElement paragraph(String namedStyle, String listId, int nestingLevel, ParagraphElement... runs) {
+        Paragraph paragraph = new Paragraph()
+                .setParagraphStyle(new ParagraphStyle().setNamedStyleType(namedStyle))
+                .setElements(new ArrayList<>(Arrays.asList(runs)));
+        if (listId != null)
+            paragraph.setBullet(new Bullet().setListId(listId).setNestingLevel(nestingLevel));
+        return new StructuralElement().setParagraph(paragraph);
+    }
+
+    private static ParagraphElement run(String content, TextStyle style) {
+        return new ParagraphElement().setTextRun(new TextRun().setContent(content).setTextStyle(style == null ? new TextStyle() : style));
+    }
+
+    private static Document variantDocument(int question, int variant, boolean withTable) {
+        List<StructuralElement> content = new ArrayList<>();
+        content.add(new StructuralElement().setSectionBreak(new SectionBreak()));
+        content.add(paragraph("HEADING_2", null, 0, run("Question " + question + "\n", null)));
+        content.add(paragraph("NORMAL_TEXT", null, 0, run("Variant " + variant + " of this question. ", null),
+                run("Show your work.\n", new TextStyle().setBold(true))));
+        content.add(paragraph("NORMAL_TEXT", "list", 0, run("First part\n", null)));
+        content.add(paragraph("NORMAL_TEXT", "list", 1, run("A detail of the first part\n", new TextStyle().setItalic(true))));
+        content.add(paragraph("NORMAL_TEXT", "list", 0, run("Second part\n", null)));
+        if (withTable)
+            content.add(new StructuralElement().setTable(new Table().setRows(1).setColumns(2)));
+        Map<String, com.google.api.services.docs.v1.model.List> lists = new HashMap<>();
+        lists.put("list", new com.google.api.services.docs.v1.model.List()
+                .setListProperties(new ListProperties().setNestingLevels(new ArrayList<>(Arrays.asList(
+                        new NestingLevel().setGlyphType("DECIMAL"), new NestingLevel().setGlyphType("ALPHA"))))));
+        return new Document()
+                .setBody(new Body().setContent(content))
+                .setLists(lists);
+    }
+
+    /* Setting up and reading back */
+
+    /**
+     * Lays out an exam the way ExamGenerator expects to find it: a folder of question folders Q01..Qn, each with its
+     * variants as Docs, and a ClassList with the students split over two tabs. Every tenth student has an override
+     * time of overrideMinutes, if it's positive.
+     * @return the ClassList rows, in order.
+     */
+    public synchronized List<List<Object>> seedExam(String folderName, int questions, int variants, int students, int overrideMinutes) throws IOException {
+        try {
+            FakeFile exam = create(folderName, FOLDER_MIME_TYPE, null);
+            for (int q = 1; q <= questions; q++) {
+                FakeFile question = create(String.format("Q%02d", q), FOLDER_MIME_TYPE, Collections.singletonList(exam.id));
+                for (int v = 0; v < variants; v++) {
+                    FakeFile variant = create(String.format("Q%02d Variant %d", q, v + 1), DOCUMENT_MIME_TYPE, Collections.singletonList(question.id));
+                    // The last variant of the first question has a table, which can't be merged.
+                    variant.document = variantDocument(q, v + 1, q == 1 && v == variants - 1);
+                }
+            }
+
+            List<List<Object>> rows = new ArrayList<>();
+            for (int i = 0; i < students; i++) {
+                List<Object> row = new ArrayList<>(Collections.nCopies(12, ""));
+                row.set(0, String.format("%08d", 50000000 + i));
+                row.set(1, "Last" + i);
+                row.set(2, "First" + i);
+                row.set(7, "student" + i + "@example.edu");
+                if (overrideMinutes > 0 && i % 10 == 9)
+                    row.set(11, String.valueOf(overrideMinutes));
+                rows.add(row);
+            }
+
+            FakeFile classList = create("ClassList", SPREADSHEET_MIME_TYPE, Collections.singletonList(exam.id));
+            int half = (students + 1) / 2;
+            classList.tabs.put("Section 1", copyRows(rows.subList(0, half)));
+            classList.tabs.put("Section 2", copyRows(rows.subList(half, students)));
+            return rows;
+        } catch (ApiError e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @return the calls made since the last time this was called, by operation, and resets them.
+     */
+    public Map<String, Long> takeCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> e : calls.entrySet())
+            counts.put(e.getKey(), e.getValue().getAndSet(0));
+        counts.values().removeIf(n -> n == 0);
+        return counts;
+    }
+
+    /**
+     * @return the most calls made to each service in any one quota window.
+     */
+    public Map<String, Integer> getPeakQuotaUse() {
+        Map<String, Integer> peaks = new TreeMap<>();
+        quotas.forEach((service, quota) -> {
+            synchronized (quota) {
+                peaks.put(service, quota.peak);
+            }
+        });
+        return peaks;
+    }
+
+    /**
+     * @return when each email was last given access to a file, in milliseconds.
+     */
+    public Map<String, Long> getGranted() {
+        return new HashMap<>(granted);
+    }
+
+    /**
+     * @return when each email last lost access to a file, in milliseconds.
+     */
+    public Map<String, Long> getRevoked() {
+        return new HashMap<>(revoked);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+LoadTest.java
+
+Runs ExamGenerator's real generate and timed share flows against FakeGoogleBackend, and reports what each one cost: wall
+time, API calls by operation, injected faults, and how long past their allowance students kept access. First it checks
+that the share journal and permission ledger drop an entry cut off by a crash mid-write, rather than replaying it. It's configured
+with system properties (see the README), and should be run in an empty directory since ExamGenerator keeps its caches
+and journals in the working directory.
+ */
+
+package examgenerator;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+
+public class LoadTest {
+    private static final String FOLDER_NAME = "LoadTest";
+
+    private interface Phase {
+        void run() throws Exception;
+    }
+
+    public static void main(String... args) throws Exception {
+        int students = Integer.getInteger("loadtest.students", 2000);
+        int questions = Integer.getInteger("loadtest.questions", 12);
+        int variants = Integer.getInteger("loadtest.variants", 4);
+        int shareMinutes = Integer.getInteger("loadtest.shareMinutes", 1);
+        long latency = Long.getLong("loadtest.latencyMillis", 50);
+        double rateLimitedRate = Double.parseDouble(System.getProperty("loadtest.rateLimitedRate", "0.01"));
+        double serverErrorRate = Double.parseDouble(System.getProperty("loadtest.serverErrorRate", "0.005"));
+        int quota = Integer.getInteger("loadtest.quotaPer100s", 0);
+        long seed = Long.getLong("loadtest.seed", 1);
+        List<String> extraArgs = Arrays.stream(System.getProperty("loadtest.args", "--rate 500 --max-in-flight 64 --workers 32").trim().split("\\s+"))
+                .filter(a -> !a.isEmpty())
+                .collect(Collectors.toList());
+
+        System.out.printf("Load test: %d students, %d questions of %d variants, shared for %d minutes; %d ms latency, %.1f%% 429s, %.1f%% 5xxs, quota %s.\n",
+                students, questions, variants, shareMinutes, latency, rateLimitedRate * 100, serverErrorRate * 100,
+                quota > 0 ? quota + " per 100 s" : "unlimited");
+
+        checkTornJournals();
+
+        FakeGoogleBackend backend = new FakeGoogleBackend(latency, rateLimitedRate, serverErrorRate, quota, seed);
+        // Every tenth student gets a minute longer, so overrides are part of the revocation schedule.
+        List<Student> roster = new ArrayList<>();
+        for (List<Object> row : backend.seedExam(FOLDER_NAME, questions, variants, students, shareMinutes + 1))
+            roster.add(Roster.parseRow(row));
+        ExamGenerator.CredentialSource noCredentials = transport -> request -> { };
+
+        phase("generate", backend, () -> ExamGenerator.run(backend, noCredentials, arguments(extraArgs, "-g")));
+        phase("timed share", backend, () -> ExamGenerator.run(backend, noCredentials, arguments(extraArgs, "-s", String.valueOf(shareMinutes))));
+        printRevocationLag(roster, shareMinutes, backend);
+    }
+
+    /**
+     * Writes a journal and a ledger whose last entry was cut off partway through, as a crash mid-write leaves them,
+     * and checks that replaying them drops that entry. A deadline missing its last digits still parses, as a time long
+     * past, and would have the student revoked straight away; a permission ID missing its end can't be deleted.
+     */
+    private static void checkTornJournals() throws IOException {
+        String examFolderId = "torn-journal-check";
+        Student complete = new Student("10000001", "Complete", "Entry", "complete@example.edu", null);
+        Student torn = new Student("10000002", "Torn", "Entry", "torn@example.edu", null);
+        long deadline = System.currentTimeMillis() + 3600000L;
+
+        String share = "SHARE\t" + torn.getId() + "\t" + deadline;
+        Path journal = writeTorn("shares-" + examFolderId + ".log",
+                "SHARE\t" + complete.getId() + "\t" + deadline + "\n" + share.substring(0, share.length() - 4));
+        Map<String, Long> outstanding = ShareJournal.open(examFolderId).getOutstanding();
+        if (!outstanding.equals(Collections.singletonMap(complete.getId(), deadline)))
+            throw new IllegalStateException("The torn journal replayed as " + outstanding + ".");
+
+        String grant = "GRANT\t" + torn.getId() + "\tfolder2\tpermission2";
+        Path ledgerFile = writeTorn("permissions-" + examFolderId + ".log",
+                "GRANT\t" + complete.getId() + "\tfolder1\tpermission1\n" + grant.substring(0, grant.length() - 3));
+        PermissionLedger ledger = PermissionLedger.open(examFolderId);
+        if (!"permission1".equals(ledger.getPermissionId(complete, "folder1")) || ledger.getPermissionId(torn, "folder2") != null)
+            throw new IllegalStateException("The torn ledger replayed the cut-off grant as " + ledger.getPermissionId(torn, "folder2") + ".");
+
+        Files.delete(journal);
+        Files.delete(ledgerFile);
+        System.out.println("Torn journal and ledger entries were dropped on replay.");
+    }
+
+    private static Path writeTorn(String name, String log) throws IOException {
+        Path file = JournalFile.path(name);
+        Files.createDirectories(file.getParent());
+        Files.write(file, log.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static String[] arguments(List<String> extraArgs, String... operation) {
+        List<String> all = new ArrayList<>(Arrays.asList("-f", FOLDER_NAME));
+        all.addAll(Arrays.asList(operation));
+        all.addAll(extraArgs);
+        return all.toArray(new String[0]);
+    }
+
+    private static void phase(String name, FakeGoogleBackend backend, Phase phase) throws Exception {
+        System.out.println("\n=== " + name + " ===");
+        backend.takeCounts();
+        long start = System.nanoTime();
+        phase.run();
+        long elapsed = System.nanoTime() - start;
+        Map<String, Long> counts = backend.takeCounts();
+
+        System.out.printf("\n--- %s: %.1f s wall time ---\n", name, elapsed / 1e9);
+        long total = counts.entrySet().stream()
+                .filter(e -> !e.getKey().startsWith("http.") && !e.getKey().startsWith("fault."))
+                .mapToLong(Map.Entry::getValue)
+                .sum();
+        System.out.printf("%-32s %8d\n", "API calls", total);
+        counts.forEach((operation, n) -> System.out.printf("  %-30s %8d\n", operation, n));
+        backend.getPeakQuotaUse().forEach((service, peak) -> System.out.printf("Peak %s quota use: %d calls per 100 s.\n", service, peak));
+    }
+
+    /**
+     * Reports how long past their allowance each student kept access, from when the backend granted it to when the
+     * backend revoked it.
+     */
+    private static void printRevocationLag(List<Student> roster, int shareMinutes, FakeGoogleBackend backend) {
+        Map<String, Long> granted = backend.getGranted();
+        Map<String, Long> revoked = backend.getRevoked();
+        List<Long> lags = new ArrayList<>();
+        List<String> neverRevoked = new ArrayList<>();
+        for (Student s : roster) {
+            String email = s.getEmail().toLowerCase();
+            if (!granted.containsKey(email))
+                continue;
+            if (!revoked.containsKey(email)) {
+                neverRevoked.add(s.getId());
+                continue;
+            }
+            long allowance = s.getOverrideTime().orElse(shareMinutes) * 60000L;
+            lags.add(revoked.get(email) - granted.get(email) - allowance);
+        }
+
+        System.out.println("\n--- revocation lag (access beyond allowance) ---");
+        if (!lags.isEmpty()) {
+            Collections.sort(lags);
+            System.out.printf("%d students: min %d ms, median %d ms, p95 %d ms, max %d ms.\n", lags.size(), lags.get(0),
+                    lags.get(lags.size() / 2), lags.get((int) Math.ceil(lags.size() * 0.95) - 1), lags.get(lags.size() - 1));
+        }
+        if (!neverRevoked.isEmpty())
+            System.out.println(neverRevoked.size() + " students were never revoked: " + neverRevoked);
+    }
+}
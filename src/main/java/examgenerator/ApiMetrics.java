@@ -0,0 +1,360 @@
+/*
+Counts and times every Google API call the program makes, by operation (drive.files.copy, drive.permissions.delete,
+sheets.spreadsheets.values.append, ...): calls, errors by status, retries, and a latency histogram. Calls inside a Drive
+batch are counted under their own operation, timed from when the batch was sent to when their response was read. Also
+kept are how many requests were outstanding at once (peak and time-weighted mean), how many batches were sent, and how
+long callers waited on the rate limiter. With the pooled transport, its connection statistics are reported too.
+
+The summary is printed as a table, and written to the metrics directory as JSON and in the Prometheus text format, at
+the end of each run or whenever asked for during a timed share.
+ */
+
+package examgenerator;
+
+import com.google.api.client.googleapis.services.AbstractGoogleClientRequest;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ApiMetrics {
+    private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+    private static final String METRICS_DIRECTORY_PATH = "metrics";
+
+    // Upper bounds of the latency histogram's buckets, in milliseconds. A last bucket catches everything slower.
+    private static final long[] BUCKET_MILLIS = {5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000};
+
+    // A status for calls which failed without an HTTP response (connection resets, timeouts and the like).
+    public static final int NO_RESPONSE = 0;
+
+    private static final Map<Class<?>, String> names = new ConcurrentHashMap<>();
+    private static final Map<String, Operation> operations = new ConcurrentSkipListMap<>();
+    private static final LongAdder batches = new LongAdder();
+    private static final LongAdder rateLimitWaitNanos = new LongAdder();
+    private static volatile PooledTransport connectionPool;
+
+    // In-flight bookkeeping, guarded by the class.
+    private static int inFlight, peakInFlight;
+    private static long lastChange = System.nanoTime(), started = lastChange;
+    private static long startedMillis = System.currentTimeMillis();
+    private static double inFlightNanos;
+
+    // The name this run's files were given on the first write, or null before then.
+    private static String runName;
+
+    private static final class Operation {
+        final Map<Integer, LongAdder> statuses = new ConcurrentSkipListMap<>();
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKET_MILLIS.length + 1);
+        final LongAdder retries = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final AtomicLong maxNanos = new AtomicLong();
+
+        long calls() {
+            return statuses.values().stream().mapToLong(LongAdder::sum).sum();
+        }
+
+        long errors() {
+            return statuses.entrySet().stream().filter(e -> e.getKey() >= 300 || e.getKey() == NO_RESPONSE)
+                    .mapToLong(e -> e.getValue().sum()).sum();
+        }
+
+        /**
+         * @return the upper bound of the bucket holding the given quantile, in milliseconds, or -1 if it's past the
+         * last bound.
+         */
+        long quantileMillis(double q) {
+            long total = 0;
+            for (int i = 0; i < buckets.length(); i++)
+                total += buckets.get(i);
+            long rank = (long) Math.ceil(q * total), seen = 0;
+            for (int i = 0; i < BUCKET_MILLIS.length; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank)
+                    return BUCKET_MILLIS[i];
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Forgets everything recorded so far.
+     */
+    public static synchronized void reset() {
+        operations.clear();
+        batches.reset();
+        rateLimitWaitNanos.reset();
+        connectionPool = null;
+        peakInFlight = inFlight;
+        inFlightNanos = 0;
+        lastChange = started = System.nanoTime();
+        startedMillis = System.currentTimeMillis();
+        runName = null;
+    }
+
+    /**
+     * @return the operation name for a request, e.g. drive.files.copy for a Drive.Files.Copy.
+     */
+    public static String operation(AbstractGoogleClientRequest<?> request) {
+        return names.computeIfAbsent(request.getClass(), type -> {
+            // com.google.api.services.<service>.<version>.<Client>$<Resource>...$<Method>
+            String name = type.getName();
+            String[] packages = name.substring(0, name.lastIndexOf('.')).split("\\.");
+            String[] nested = name.substring(name.lastIndexOf('.') + 1).split("\\$");
+            StringBuilder operation = new StringBuilder(packages.length > 4 ? packages[4] : nested[0].toLowerCase());
+            for (int i = 1; i < nested.length; i++)
+                operation.append('.').append(Character.toLowerCase(nested[i].charAt(0))).append(nested[i].substring(1));
+            return operation.toString();
+        });
+    }
+
+    private static synchronized void changeInFlight(int delta) {
+        long now = System.nanoTime();
+        inFlightNanos += (double) inFlight * (now - lastChange);
+        lastChange = now;
+        inFlight += delta;
+        peakInFlight = Math.max(peakInFlight, inFlight);
+    }
+
+    /**
+     * Marks a request (or a batch of them) as sent.
+     * @return the time it was sent, to pass back to {@link #received}.
+     */
+    public static long sent() {
+        changeInFlight(1);
+        return System.nanoTime();
+    }
+
+    /**
+     * Marks a request (or batch) sent with {@link #sent} as finished, whether or not it succeeded.
+     */
+    public static void received() {
+        changeInFlight(-1);
+    }
+
+    /**
+     * Records the outcome of one call.
+     * @param status the HTTP status, or NO_RESPONSE.
+     */
+    public static void record(String operation, long sentNanos, int status) {
+        long nanos = System.nanoTime() - sentNanos;
+        Operation op = operations.computeIfAbsent(operation, o -> new Operation());
+        op.statuses.computeIfAbsent(status, s -> new LongAdder()).increment();
+        op.totalNanos.add(nanos);
+        op.maxNanos.accumulateAndGet(nanos, Math::max);
+        int bucket = 0;
+        while (bucket < BUCKET_MILLIS.length && nanos > BUCKET_MILLIS[bucket] * 1000000)
+            bucket++;
+        op.buckets.incrementAndGet(bucket);
+        Lane.current().called();
+    }
+
+    public static void retried(String operation) {
+        operations.computeIfAbsent(operation, o -> new Operation()).retries.increment();
+    }
+
+    public static void batchSent() {
+        batches.increment();
+    }
+
+    /**
+     * Reports the pool's statistics along with the API calls.
+     */
+    public static void setConnectionPool(PooledTransport pool) {
+        connectionPool = pool;
+    }
+
+    public static void waitedForRateLimit(long nanos) {
+        rateLimitWaitNanos.add(nanos);
+        Lane.current().waited(nanos);
+    }
+
+    private static synchronized double meanInFlight() {
+        long now = System.nanoTime();
+        return now == started ? 0 : (inFlightNanos + (double) inFlight * (now - lastChange)) / (now - started);
+    }
+
+    private static synchronized int getPeakInFlight() {
+        return peakInFlight;
+    }
+
+    public static boolean isEmpty() {
+        return operations.isEmpty();
+    }
+
+    /**
+     * Prints a table of every operation so far, then the batch, concurrency and rate limiter totals. Percentiles are
+     * the upper bounds of the histogram buckets they fall in.
+     */
+    public static void printSummary(PrintStream out) {
+        out.println();
+        out.printf("%-40s %8s %7s %8s %9s %8s %8s %9s\n", "API call", "calls", "errors", "retries", "mean ms", "p50 ms", "p95 ms", "max ms");
+        long calls = 0, errors = 0, retries = 0;
+        for (Map.Entry<String, Operation> e : operations.entrySet()) {
+            Operation op = e.getValue();
+            long n = op.calls();
+            out.printf("%-40s %8d %7d %8d %9.1f %8s %8s %9d\n", e.getKey(), n, op.errors(), op.retries.sum(),
+                    n == 0 ? 0.0 : op.totalNanos.sum() / 1e6 / n, bound(op.quantileMillis(0.5)), bound(op.quantileMillis(0.95)),
+                    op.maxNanos.get() / 1000000);
+            calls += n;
+            errors += op.errors();
+            retries += op.retries.sum();
+        }
+        out.printf("%-40s %8d %7d %8d\n", "total", calls, errors, retries);
+        out.printf("%d batch requests. Requests in flight: peak %d, mean %.2f. Waited %.1f s in total for the rate limiter.\n",
+                batches.sum(), getPeakInFlight(), meanInFlight(), rateLimitWaitNanos.sum() / 1e9);
+        PooledTransport pool = connectionPool;
+        if (pool != null)
+            pool.printSummary(out);
+    }
+
+    private static String bound(long millis) {
+        return millis < 0 ? ">" + BUCKET_MILLIS[BUCKET_MILLIS.length - 1] : "<=" + millis;
+    }
+
+    /**
+     * Writes the metrics so far to metrics/run-&lt;time&gt;.json and .prom, replacing any from earlier in this run. The
+     * time is to the millisecond, and if another run (say in another process) has already taken that name, a number is
+     * added until the name is free.
+     * @return the path of the JSON file.
+     */
+    public static Path write() throws IOException {
+        Path dir = Paths.get(METRICS_DIRECTORY_PATH);
+        Files.createDirectories(dir);
+        String name = runName(dir);
+        Path json = dir.resolve(name + ".json");
+        try (Writer out = Files.newBufferedWriter(json, StandardCharsets.UTF_8)) {
+            out.write(JSON_FACTORY.toPrettyString(toJson()));
+        }
+        try (Writer out = Files.newBufferedWriter(dir.resolve(name + ".prom"), StandardCharsets.UTF_8)) {
+            out.write(toPrometheus());
+        }
+        return json;
+    }
+
+    /**
+     * @return the name of this run's files, without the extension. On the first call an empty JSON file is created
+     * under the start time, or that with -2, -3, ... added if it's taken, so no two runs share a name.
+     */
+    private static synchronized String runName(Path dir) throws IOException {
+        if (runName != null)
+            return runName;
+        String base = "run-" + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date(startedMillis));
+        for (int n = 1; ; n++) {
+            String name = n == 1 ? base : base + "-" + n;
+            try {
+                Files.createFile(dir.resolve(name + ".json"));
+                return runName = name;
+            } catch (FileAlreadyExistsException e) {
+                // Taken: try the next.
+            }
+        }
+    }
+
+    /**
+     * Prints the summary and writes the files, reporting rather than throwing if they can't be written.
+     */
+    public static void report() {
+        if (isEmpty())
+            return;
+        printSummary(System.out);
+        try {
+            System.out.println("API metrics written to " + write() + ".");
+        } catch (IOException e) {
+            System.err.println("Couldn't write the API metrics: " + e.getMessage());
+        }
+    }
+
+    private static Map<String, Object> toJson() {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("seconds", (System.nanoTime() - started) / 1e9);
+        json.put("batches", batches.sum());
+        json.put("peakInFlight", getPeakInFlight());
+        json.put("meanInFlight", meanInFlight());
+        json.put("rateLimitWaitSeconds", rateLimitWaitNanos.sum() / 1e9);
+        PooledTransport pool = connectionPool;
+        if (pool != null)
+            json.put("connectionPool", pool.toJson());
+
+        Map<String, Object> ops = new LinkedHashMap<>();
+        for (Map.Entry<String, Operation> e : operations.entrySet()) {
+            Operation op = e.getValue();
+            Map<String, Object> o = new LinkedHashMap<>();
+            o.put("calls", op.calls());
+            o.put("errors", op.errors());
+            o.put("retries", op.retries.sum());
+            Map<String, Long> statuses = new LinkedHashMap<>();
+            op.statuses.forEach((status, n) -> statuses.put(String.valueOf(status), n.sum()));
+            o.put("statuses", statuses);
+            o.put("totalSeconds", op.totalNanos.sum() / 1e9);
+            o.put("maxSeconds", op.maxNanos.get() / 1e9);
+            Map<String, Long> histogram = new LinkedHashMap<>();
+            for (int i = 0; i < op.buckets.length(); i++)
+                histogram.put(i < BUCKET_MILLIS.length ? String.valueOf(BUCKET_MILLIS[i]) : "+Inf", op.buckets.get(i));
+            o.put("latencyMillisBuckets", histogram);
+            ops.put(e.getKey(), o);
+        }
+        json.put("operations", ops);
+        return json;
+    }
+
+    private static String toPrometheus() {
+        StringBuilder out = new StringBuilder();
+        out.append("# HELP examgenerator_api_calls_total Google API calls by operation and HTTP status (0 for no response).\n");
+        out.append("# TYPE examgenerator_api_calls_total counter\n");
+        operations.forEach((name, op) -> op.statuses.forEach((status, n) ->
+                out.append("examgenerator_api_calls_total{operation=\"").append(name).append("\",status=\"").append(status)
+                        .append("\"} ").append(n.sum()).append('\n')));
+
+        out.append("# HELP examgenerator_api_retries_total Google API calls repeated after a retryable failure.\n");
+        out.append("# TYPE examgenerator_api_retries_total counter\n");
+        operations.forEach((name, op) -> out.append("examgenerator_api_retries_total{operation=\"").append(name)
+                .append("\"} ").append(op.retries.sum()).append('\n'));
+
+        out.append("# HELP examgenerator_api_latency_seconds Google API call latency.\n");
+        out.append("# TYPE examgenerator_api_latency_seconds histogram\n");
+        operations.forEach((name, op) -> {
+            long cumulative = 0;
+            for (int i = 0; i < op.buckets.length(); i++) {
+                cumulative += op.buckets.get(i);
+                out.append("examgenerator_api_latency_seconds_bucket{operation=\"").append(name).append("\",le=\"")
+                        .append(i < BUCKET_MILLIS.length ? String.valueOf(BUCKET_MILLIS[i] / 1000.0) : "+Inf")
+                        .append("\"} ").append(cumulative).append('\n');
+            }
+            out.append("examgenerator_api_latency_seconds_sum{operation=\"").append(name).append("\"} ")
+                    .append(op.totalNanos.sum() / 1e9).append('\n');
+            out.append("examgenerator_api_latency_seconds_count{operation=\"").append(name).append("\"} ")
+                    .append(cumulative).append('\n');
+        });
+
+        out.append("# HELP examgenerator_api_batches_total Drive batch requests sent.\n");
+        out.append("# TYPE examgenerator_api_batches_total counter\n");
+        out.append("examgenerator_api_batches_total ").append(batches.sum()).append('\n');
+        out.append("# HELP examgenerator_api_in_flight_peak Most requests outstanding at once.\n");
+        out.append("# TYPE examgenerator_api_in_flight_peak gauge\n");
+        out.append("examgenerator_api_in_flight_peak ").append(getPeakInFlight()).append('\n');
+        out.append("# HELP examgenerator_api_in_flight_mean Time-weighted mean of requests outstanding.\n");
+        out.append("# TYPE examgenerator_api_in_flight_mean gauge\n");
+        out.append("examgenerator_api_in_flight_mean ").append(meanInFlight()).append('\n');
+        out.append("# HELP examgenerator_rate_limit_wait_seconds_total Time callers spent waiting for the rate limiter.\n");
+        out.append("# TYPE examgenerator_rate_limit_wait_seconds_total counter\n");
+        out.append("examgenerator_rate_limit_wait_seconds_total ").append(rateLimitWaitNanos.sum() / 1e9).append('\n');
+        PooledTransport pool = connectionPool;
+        if (pool != null)
+            pool.appendPrometheus(out);
+        return out.toString();
+    }
+}
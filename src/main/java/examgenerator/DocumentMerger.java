@@ -0,0 +1,287 @@
+/*
+Builds each student's exam as one Google Doc holding all of their questions, rather than a copy of each question's
+file. The Docs API can't append one document's content to another, so each variant's Document is fetched once (and
+kept in memory for every student who gets it) and turned into a fragment: its text, plus the text styles, paragraph
+styles and lists to apply over it. A student's exam is then their fragments' text inserted in one go, followed by the
+styles and lists shifted to where each fragment landed, all in a single documents.batchUpdate.
+
+Only paragraphs of plain text runs are merged. A variant with anything else in it (tables, images, equations,
+footnotes and so on) can't be rebuilt this way, and is copied into the student's folder as its own file as before.
+ */
+
+package examgenerator;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.docs.v1.Docs;
+import com.google.api.services.docs.v1.model.*;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+
+public class DocumentMerger {
+    private static final String DOCUMENT_MIME_TYPE = "application/vnd.google-apps.document";
+
+    // The paragraph and text style fields carried over from a variant. Others (like heading IDs) only make sense in
+    // the variant's own document.
+    private static final List<String> PARAGRAPH_FIELDS = Arrays.asList("namedStyleType", "alignment", "direction",
+            "lineSpacing", "spaceAbove", "spaceBelow", "indentFirstLine", "indentStart", "indentEnd",
+            "keepLinesTogether", "keepWithNext", "avoidWidowAndOrphan");
+    private static final List<String> TEXT_FIELDS = Arrays.asList("bold", "italic", "underline", "strikethrough",
+            "smallCaps", "baselineOffset", "fontSize", "weightedFontFamily", "foregroundColor", "backgroundColor", "link");
+
+    private final Docs docsService;
+    private final Map<String, Future<Fragment>> fragments = new ConcurrentHashMap<>();
+
+    /**
+     * A variant's content, with every range relative to the start of its text.
+     */
+    private static final class Fragment {
+        final StringBuilder text = new StringBuilder();
+        final List<Styled<TextStyle>> textStyles = new ArrayList<>();
+        final List<Styled<ParagraphStyle>> paragraphStyles = new ArrayList<>();
+        final List<Styled<String>> lists = new ArrayList<>();
+    }
+
+    private static final class Styled<S> {
+        final int start, end;
+        final S style;
+        final String fields;
+
+        Styled(int start, int end, S style, String fields) {
+            this.start = start;
+            this.end = end;
+            this.style = style;
+            this.fields = fields;
+        }
+    }
+
+    // Marks a variant which can't be merged.
+    private static final Fragment UNMERGEABLE = new Fragment();
+
+    public DocumentMerger(Docs docsService) {
+        this.docsService = docsService;
+    }
+
+    /**
+     * Fetches every variant of the exam, up to parallelism at a time, so workers never wait on each other for one.
+     */
+    public void load(Exam exam, int parallelism) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, parallelism));
+        try {
+            List<Future<Boolean>> loads = new ArrayList<>();
+            for (Question q : exam.getQuestions()) {
+                for (Question.QuestionVariant qv : q.getVariants())
+                    loads.add(pool.submit(() -> canMerge(qv)));
+            }
+            int unmergeable = 0;
+            for (Future<Boolean> load : loads) {
+                if (!get(load))
+                    unmergeable++;
+            }
+            System.out.printf("Loaded %d variant documents, %d of which can't be merged and will be copied.\n", loads.size(), unmergeable);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static <T> T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading variant documents.", e);
+        }
+    }
+
+    private Fragment fragment(Question.QuestionVariant qv) throws IOException {
+        FutureTask<Fragment> task = new FutureTask<>(() -> fetch(qv));
+        Future<Fragment> existing = fragments.putIfAbsent(qv.getId(), task);
+        if (existing != null)
+            return get(existing);
+        task.run();
+        return get(task);
+    }
+
+    private Fragment fetch(Question.QuestionVariant qv) throws IOException {
+        Document document;
+        try {
+            document = Utils.executeWithBackoff(docsService.documents().get(qv.getId()));
+        } catch (HttpResponseException e) {
+            // Not a Google Doc (a PDF, say), so there's nothing to merge. Anything else, like a 403 for a missing Docs
+            // scope or a variant this account can't read, is a real failure and mustn't be hidden by copying instead.
+            if (e.getStatusCode() == 400)
+                return UNMERGEABLE;
+            throw e;
+        }
+        Fragment fragment = toFragment(document);
+        if (fragment == UNMERGEABLE)
+            System.out.println("Variant " + qv.getName() + " has content which can't be merged, it will be copied.");
+        return fragment;
+    }
+
+    /**
+     * @return whether the variant can be merged into a student's document, rather than copied.
+     */
+    public boolean canMerge(Question.QuestionVariant qv) throws IOException {
+        return fragment(qv) != UNMERGEABLE;
+    }
+
+    static Fragment toFragment(Document document) {
+        Fragment fragment = new Fragment();
+        Map<String, com.google.api.services.docs.v1.model.List> lists = document.getLists() == null ? Collections.emptyMap() : document.getLists();
+        String listId = null;
+        int listStart = 0;
+
+        for (StructuralElement element : document.getBody().getContent()) {
+            if (element.getSectionBreak() != null)
+                continue;
+            Paragraph paragraph = element.getParagraph();
+            if (paragraph == null)
+                return UNMERGEABLE;
+
+            // A run of paragraphs in the same list becomes one list, so numbering carries on through it.
+            String paragraphList = paragraph.getBullet() == null ? null : paragraph.getBullet().getListId();
+            if (listId != null && !listId.equals(paragraphList)) {
+                fragment.lists.add(new Styled<>(listStart, fragment.text.length(), preset(lists.get(listId)), null));
+                listId = null;
+            }
+            if (paragraphList != null && listId == null) {
+                listId = paragraphList;
+                listStart = fragment.text.length();
+            }
+
+            int start = fragment.text.length();
+            // Lists take their nesting from leading tabs, which are removed when the list is made.
+            if (paragraph.getBullet() != null && paragraph.getBullet().getNestingLevel() != null) {
+                for (int i = 0; i < paragraph.getBullet().getNestingLevel(); i++)
+                    fragment.text.append('\t');
+            }
+            for (ParagraphElement pe : paragraph.getElements()) {
+                TextRun run = pe.getTextRun();
+                if (run == null)
+                    return UNMERGEABLE;
+                int runStart = fragment.text.length();
+                fragment.text.append(run.getContent());
+                Styled<TextStyle> style = copy(run.getTextStyle(), TEXT_FIELDS, new TextStyle(), runStart, fragment.text.length());
+                if (style != null)
+                    fragment.textStyles.add(style);
+            }
+            Styled<ParagraphStyle> style = copy(paragraph.getParagraphStyle(), PARAGRAPH_FIELDS, new ParagraphStyle(), start, fragment.text.length());
+            if (style != null)
+                fragment.paragraphStyles.add(style);
+        }
+        if (listId != null)
+            fragment.lists.add(new Styled<>(listStart, fragment.text.length(), preset(lists.get(listId)), null));
+        return fragment;
+    }
+
+    private static <S extends com.google.api.client.json.GenericJson> Styled<S> copy(S from, List<String> fields, S to, int start, int end) {
+        if (from == null)
+            return null;
+        List<String> set = new ArrayList<>();
+        for (String field : fields) {
+            Object value = from.get(field);
+            // Links to headings or bookmarks point into the variant's own document.
+            if (value instanceof Link && ((Link) value).getUrl() == null)
+                continue;
+            if (value != null) {
+                to.set(field, value);
+                set.add(field);
+            }
+        }
+        return set.isEmpty() ? null : new Styled<>(start, end, to, String.join(",", set));
+    }
+
+    /**
+     * @return the bullet preset closest to the list's first level.
+     */
+    private static String preset(com.google.api.services.docs.v1.model.List list) {
+        String glyph = null;
+        if (list != null && list.getListProperties() != null && list.getListProperties().getNestingLevels() != null
+                && !list.getListProperties().getNestingLevels().isEmpty())
+            glyph = list.getListProperties().getNestingLevels().get(0).getGlyphType();
+        if (glyph == null || glyph.equals("GLYPH_TYPE_UNSPECIFIED") || glyph.equals("NONE"))
+            return "BULLET_DISC_CIRCLE_SQUARE";
+        switch (glyph) {
+            case "ZERO_DECIMAL":
+                return "NUMBERED_ZERODECIMAL_ALPHA_ROMAN";
+            case "UPPER_ALPHA":
+                return "NUMBERED_UPPERALPHA_ALPHA_ROMAN";
+            case "UPPER_ROMAN":
+                return "NUMBERED_UPPERROMAN_UPPERALPHA_DECIMAL";
+            default:
+                return "NUMBERED_DECIMAL_ALPHA_ROMAN";
+        }
+    }
+
+    /**
+     * @return the requests which fill an empty document with the variants, in order.
+     */
+    List<Request> requests(List<Question.QuestionVariant> variants) throws IOException {
+        StringBuilder text = new StringBuilder();
+        List<Request> styles = new ArrayList<>();
+        List<Request> lists = new ArrayList<>();
+
+        for (Question.QuestionVariant qv : variants) {
+            Fragment f = fragment(qv);
+            // An empty document's body starts at index 1.
+            int offset = 1 + text.length();
+            text.append(f.text);
+            for (Styled<TextStyle> s : f.textStyles)
+                styles.add(new Request().setUpdateTextStyle(new UpdateTextStyleRequest()
+                        .setRange(range(offset, s))
+                        .setTextStyle(s.style)
+                        .setFields(s.fields)));
+            for (Styled<ParagraphStyle> s : f.paragraphStyles)
+                styles.add(new Request().setUpdateParagraphStyle(new UpdateParagraphStyleRequest()
+                        .setRange(range(offset, s))
+                        .setParagraphStyle(s.style)
+                        .setFields(s.fields)));
+            for (Styled<String> s : f.lists)
+                lists.add(new Request().setCreateParagraphBullets(new CreateParagraphBulletsRequest()
+                        .setRange(range(offset, s))
+                        .setBulletPreset(s.style)));
+        }
+
+        List<Request> requests = new ArrayList<>();
+        requests.add(new Request().setInsertText(new InsertTextRequest()
+                .setLocation(new Location().setIndex(1))
+                .setText(text.toString())));
+        requests.addAll(styles);
+        // Making a list removes its leading tabs, which moves everything after it, so lists go last and last first.
+        Collections.reverse(lists);
+        requests.addAll(lists);
+        return requests;
+    }
+
+    private static Range range(int offset, Styled<?> s) {
+        return new Range().setStartIndex(offset + s.start).setEndIndex(offset + s.end);
+    }
+
+    /**
+     * Builds the student's merged exam document. It's filled in while it sits in the staging folder, and only then
+     * moved into the student's folder, so a document in a student's folder is always complete.
+     * @return the document's ID.
+     */
+    public String buildMergedExam(String name, List<Question.QuestionVariant> variants, String stagingFolderId, String folderId, Drive driveService) throws IOException {
+        List<Request> requests = requests(variants);
+        File doc = Utils.executeWithBackoff(driveService.files().create(new File()
+                .setName(name)
+                .setMimeType(DOCUMENT_MIME_TYPE)
+                .setParents(Collections.singletonList(stagingFolderId)))
+                .setFields("id"));
+        Utils.executeWithBackoff(docsService.documents().batchUpdate(doc.getId(), new BatchUpdateDocumentRequest()
+                .setRequests(requests)));
+        Utils.executeWithBackoff(driveService.files().update(doc.getId(), null)
+                .setAddParents(folderId)
+                .setRemoveParents(stagingFolderId)
+                .setFields("id"));
+        return doc.getId();
+    }
+}
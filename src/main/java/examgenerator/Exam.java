@@ -0,0 +1,72 @@
+/*
+A representation of the exam, including all question variations.
+ */
+
+package examgenerator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+public class Exam {
+    private final List<Question> questions;
+
+    public Exam() {
+        this.questions = new ArrayList<>();
+    }
+
+    public void addQuestion(Question question){
+        questions.add(question);
+    }
+
+    public List<Question> getQuestions(){
+        return questions;
+    }
+
+    public int size(){
+        return questions.size();
+    }
+
+    /**
+     * @return the variant of the given question (counting from 0) with the given name, or null if there isn't one.
+     */
+    public Question.QuestionVariant findVariant(int question, String name){
+        return question < questions.size() ? questions.get(question).findVariant(name) : null;
+    }
+
+    public List<Question.QuestionVariant> generateExamVariant(){
+        return questions.stream().map(Question::pickVariant).collect(Collectors.toList());
+    }
+
+    public int[] getVariantCounts(){
+        return questions.stream().mapToInt(q -> q.getVariants().size()).toArray();
+    }
+
+    /**
+     * @return the variants the student was allocated, except that any variant already copied into a partially built
+     * exam folder is kept instead: one whose ID is among copied, or else one whose name is among untagged (the copies
+     * not tagged with their variant), each of which is kept for only one question.
+     */
+    public List<Question.QuestionVariant> getExamVariant(VariantAllocator.Allocation allocation, Student student, Set<String> copied, List<String> untagged){
+        List<String> unmatched = new ArrayList<>(untagged);
+        List<Question.QuestionVariant> variant = new ArrayList<>(questions.size());
+        for (int i = 0; i < questions.size(); i++) {
+            List<Question.QuestionVariant> variants = questions.get(i).getVariants();
+            Question.QuestionVariant kept = variants.stream()
+                    .filter(qv -> copied.contains(qv.getId()))
+                    .findFirst()
+                    .orElseGet(() -> variants.stream()
+                            .filter(qv -> unmatched.contains(qv.getName()))
+                            .findFirst()
+                            .orElse(null));
+            if (kept == null)
+                kept = variants.get(allocation.variant(student, i));
+            else if (!copied.contains(kept.getId()))
+                unmatched.remove(kept.getName());
+            variant.add(kept);
+        }
+        return variant;
+    }
+}
+
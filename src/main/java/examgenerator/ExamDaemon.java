@@ -0,0 +1,288 @@
+/*
+Keeps the program running and takes commands over HTTP on localhost, so a command doesn't have to start a JVM,
+authorize and build the API clients before doing any real work. The clients, the rate limiter and each exam's timed
+shares live as long as the daemon does: every exam shared through it gets its own scheduler, and later commands (a
+makeup student, an accommodation) add to it rather than starting over.
+
+Endpoints, all on 127.0.0.1 only:
+POST /run       the body is a command line, one argument per line, exactly as it would be given to the program. The
+                command's output is streamed back while it runs.
+GET  /status    each exam with timed shares running, and how many students are still to be revoked and when.
+GET  /metrics   the API metrics since the daemon started, which are also written to the metrics directory.
+POST /shutdown  stops the daemon. Timed shares still running are journaled, and picked up by the next run.
+
+Listening on localhost isn't enough on its own, since any web page open in a browser on the same machine can post to
+it. So every request has to carry the daemon's secret in an X-Exam-Token header, which a page can't add without a CORS
+preflight the daemon never answers. The secret is written, readable only by its owner, to tokens/daemon-token each
+time the daemon starts. Requests with an Origin header, which only browsers send, are turned away regardless.
+
+On starting, the daemon resumes any timed shares left unfinished in the journal of an exam in the local cache, so they
+don't wait for a command against that exam to be revoked.
+ */
+
+package examgenerator;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class ExamDaemon {
+    public static final int DEFAULT_PORT = 8765;
+    static final String TOKEN_HEADER = "X-Exam-Token";
+    private static final Path TOKEN_FILE = Paths.get("tokens", "daemon-token");
+    private static final int TOKEN_BYTES = 32;
+
+    private final GoogleServices services;
+    private final int port;
+    private final Map<String, ExamState> exams = new ConcurrentHashMap<>();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private byte[] token;
+
+    // The response of the command each thread is working for. Threads a command starts (its worker pools, a
+    // scheduler it starts) inherit it.
+    private final InheritableThreadLocal<Response> responses = new InheritableThreadLocal<>();
+
+    /**
+     * Whatever a handler does.
+     */
+    private interface Handler {
+        void handle(String body) throws IOException;
+    }
+
+    /**
+     * The output of one command's response. Once the command finishes (or the client goes away), anything written to
+     * it is dropped, which is what happens to output from a scheduler the command started that outlives it.
+     */
+    private static final class Response {
+        private final OutputStream out;
+        private boolean open = true;
+
+        Response(OutputStream out) {
+            this.out = out;
+        }
+
+        synchronized void write(byte[] b, int off, int len) {
+            if (!open)
+                return;
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                open = false;
+            }
+        }
+
+        synchronized void flush() {
+            if (!open)
+                return;
+            try {
+                out.flush();
+            } catch (IOException e) {
+                open = false;
+            }
+        }
+
+        synchronized void close() {
+            open = false;
+        }
+    }
+
+    /**
+     * Everything printed goes to the daemon's own console, and also to the response of the command being worked on.
+     */
+    private final class RoutedOutput extends OutputStream {
+        private final OutputStream console;
+
+        RoutedOutput(OutputStream console) {
+            this.console = console;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            console.write(b, off, len);
+            Response response = responses.get();
+            if (response != null)
+                response.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            console.flush();
+            Response response = responses.get();
+            if (response != null)
+                response.flush();
+        }
+    }
+
+    public ExamDaemon(GoogleServices services, int port) {
+        this.services = services;
+        this.port = port;
+    }
+
+    /**
+     * Serves commands until shut down.
+     */
+    public void serve() throws IOException {
+        PrintStream console = System.out, errors = System.err;
+        System.setOut(new PrintStream(new RoutedOutput(console), true));
+        System.setErr(new PrintStream(new RoutedOutput(errors), true));
+
+        token = writeToken();
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        ExecutorService handlers = Executors.newCachedThreadPool();
+        server.setExecutor(handlers);
+        server.createContext("/run", exchange -> handle(exchange, "POST", this::run));
+        server.createContext("/status", exchange -> handle(exchange, "GET", body -> printStatus()));
+        server.createContext("/metrics", exchange -> handle(exchange, "GET", body -> ApiMetrics.report()));
+        server.createContext("/shutdown", exchange -> handle(exchange, "POST", body -> {
+            System.out.println("Shutting down.");
+            stopped.countDown();
+        }));
+
+        try {
+            resumeJournaledShares();
+            server.start();
+            System.out.println("Listening for commands on http://" + server.getAddress().getHostString() + ":" + port + "/, with the "
+                    + TOKEN_HEADER + " header from " + TOKEN_FILE + ".");
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            server.stop(1);
+            handlers.shutdown();
+            for (ExamState state : exams.values())
+                state.getScheduler().shutdown();
+            System.setOut(console);
+            System.setErr(errors);
+        }
+    }
+
+    /**
+     * Writes a new random secret to the token file, readable and writable only by its owner where the file system
+     * supports that.
+     * @return the secret, as it's expected in the header.
+     */
+    private static byte[] writeToken() throws IOException {
+        byte[] secret = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(secret);
+        String encoded = Base64.getUrlEncoder().withoutPadding().encodeToString(secret);
+
+        Files.createDirectories(TOKEN_FILE.getParent());
+        Path tmp = TOKEN_FILE.resolveSibling(TOKEN_FILE.getFileName() + ".tmp");
+        Files.deleteIfExists(tmp);
+        try {
+            Files.createFile(tmp, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            Files.createFile(tmp);
+        }
+        Files.write(tmp, encoded.getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, TOKEN_FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return encoded.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void reject(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] bytes = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    /**
+     * Runs a bare command against every cached exam whose journal has unfinished timed shares, which schedules them.
+     */
+    private void resumeJournaledShares() throws IOException {
+        for (ExamSnapshot snapshot : ExamSnapshot.cached()) {
+            if (snapshot.getExamFolderId() == null || !ShareJournal.hasOutstanding(snapshot.getExamFolderId()))
+                continue;
+            try {
+                ExamGenerator.execute(services, exams, true, "-f", snapshot.getFolderName());
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Couldn't resume the timed shares of " + snapshot.getFolderName() + ": " + e);
+            }
+        }
+    }
+
+    private void handle(HttpExchange exchange, String method, Handler handler) throws IOException {
+        try {
+            if (exchange.getRequestHeaders().containsKey("Origin")) {
+                reject(exchange, 403, "Requests from web pages aren't accepted.");
+                return;
+            }
+            String given = exchange.getRequestHeaders().getFirst(TOKEN_HEADER);
+            if (given == null || !MessageDigest.isEqual(token, given.trim().getBytes(StandardCharsets.UTF_8))) {
+                reject(exchange, 401, "Send the contents of " + TOKEN_FILE + " in the " + TOKEN_HEADER + " header.");
+                return;
+            }
+            if (!exchange.getRequestMethod().equals(method)) {
+                reject(exchange, 405, "Use " + method + ".");
+                return;
+            }
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            // Streamed, since a command's output comes as it runs.
+            exchange.sendResponseHeaders(200, 0);
+            Response response = new Response(exchange.getResponseBody());
+            responses.set(response);
+            try {
+                handler.handle(body);
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                System.out.flush();
+                responses.remove();
+                response.close();
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void run(String body) throws IOException {
+        String[] args = Arrays.stream(body.split("\r?\n"))
+                .filter(arg -> !arg.isEmpty())
+                .toArray(String[]::new);
+        System.out.println(new SimpleDateFormat("HH:mm:ss").format(new Date()) + " - Running: " + String.join(" ", args));
+        long start = System.nanoTime();
+        boolean valid = ExamGenerator.execute(services, exams, true, args);
+        System.out.printf("%s in %.1f seconds.\n", valid ? "Done" : "Invalid command", (System.nanoTime() - start) / 1e9);
+    }
+
+    private void printStatus() {
+        SimpleDateFormat time = new SimpleDateFormat("HH:mm:ss");
+        int running = 0;
+        for (ExamState state : exams.values()) {
+            Map<Student, Long> deadlines = state.getScheduler().getDeadlines();
+            if (deadlines.isEmpty())
+                continue;
+            running++;
+            LongSummaryStatistics stats = deadlines.values().stream().mapToLong(Long::longValue).summaryStatistics();
+            System.out.printf("%s: %d students still to be revoked, from %s until %s.\n", state.getFolderName(), stats.getCount(),
+                    time.format(new Date(stats.getMin())), time.format(new Date(stats.getMax())));
+            state.getScheduler().printLagSummary();
+        }
+        if (running == 0)
+            System.out.println("No timed shares are running.");
+    }
+}
@@ -0,0 +1,1328 @@
+/*
+ExamGenerator.java
+Daniel R. Schlegel
+7/20/2020
+
+The purpose of this project is to overcome deficiencies in tools like Blackboard for giving exams remotely in
+computer science. It automatically generates exams for each student from question banks, and supports sharing/unsharing
+the exams with students given a class list.
+
+Arguments:
+- An $ExamFolder$, detailed below.
+- One of:
+-- generate - generates the exam documents for each student.
+-- share - shares the respective document with each user until explicitly unshared.
+-- share <time in minutes to share for> - shares the respective document with each user, then waits for the time to expire and unshares them.
+-- share <username> - share only the exam for a specific user with them, until explicitly unshared.
+-- unshare - unshare respective documents with each user.
+-- unshare <username> - unshare only the exam for a specific user.
+
+This program pre-supposes you have a folder structure as follows:
+/$ExamFolder$/Q1
+/$ExamFolder$/Q2
+...
+/$ExamFolder$/Qn
+/$ExamFolder$/ClassList
+
+where $ExamFolder$ is a folder name passed as an argument to this program. ClassList should be a Google Sheet of the
+same format Banner provides when you choose to download the class list for a course as a CSV.
+ */
+
+package examgenerator;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.extensions.java6.auth.oauth2.AuthorizationCodeInstalledApp;
+import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
+import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
+import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
+import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.store.FileDataStoreFactory;
+import com.google.api.services.docs.v1.Docs;
+import com.google.api.services.docs.v1.DocsScopes;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.DriveScopes;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+import com.google.api.services.drive.model.Permission;
+import com.google.api.services.drive.model.PermissionList;
+import com.google.api.services.sheets.v4.Sheets;
+import com.google.api.services.sheets.v4.SheetsScopes;
+import com.google.api.services.sheets.v4.model.Sheet;
+import com.google.api.services.sheets.v4.model.Spreadsheet;
+import com.google.api.services.sheets.v4.model.SpreadsheetProperties;
+import org.apache.commons.cli.*;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+public class ExamGenerator {
+    private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+    private static final String TOKENS_DIRECTORY_PATH = "tokens";
+    private static final List<String> SCOPES = Arrays.asList(DriveScopes.DRIVE,DocsScopes.DOCUMENTS, SheetsScopes.SPREADSHEETS);
+    private static final String CREDENTIALS_FILE_PATH = "/credentials.json";
+    private static final int DEFAULT_WORKERS = 8;
+    private static final int DEFAULT_MAX_IN_FLIGHT = 16;
+    private static final int DEFAULT_BATCH_SIZE = Utils.MAX_BATCH_SIZE;
+    static final int PARALLEL_BATCHES = 4;
+    static final int PARALLEL_LISTINGS = 4;
+    // The app property a copied variant records the ID of the file it was copied from under.
+    private static final String VARIANT_PROPERTY = "variant";
+
+    /**
+     * Creates an authorized Credential object.
+     * @param HTTP_TRANSPORT The network HTTP Transport.
+     * @return An authorized Credential object.
+     * @throws IOException If the credentials.json file cannot be found.
+     */
+    private static Credential getCredentials(final HttpTransport HTTP_TRANSPORT) throws IOException {
+        // Load client secrets.
+        InputStream in = ExamGenerator.class.getResourceAsStream(CREDENTIALS_FILE_PATH);
+        if (in == null) {
+            throw new FileNotFoundException("Resource not found: " + CREDENTIALS_FILE_PATH);
+        }
+        GoogleClientSecrets clientSecrets = GoogleClientSecrets.load(JSON_FACTORY, new InputStreamReader(in));
+
+        // Build flow and trigger user authorization request.
+        GoogleAuthorizationCodeFlow flow = new GoogleAuthorizationCodeFlow.Builder(
+                HTTP_TRANSPORT, JSON_FACTORY, clientSecrets, SCOPES)
+                .setDataStoreFactory(new FileDataStoreFactory(new java.io.File(TOKENS_DIRECTORY_PATH)))
+                .setAccessType("offline")
+                .build();
+        LocalServerReceiver receiver = new LocalServerReceiver.Builder().setPort(8888).build();
+        return new AuthorizationCodeInstalledApp(flow, receiver).authorize("user");
+    }
+
+    private static Sheet getClassList(String examFolder){
+        return null;
+    }
+
+    private static String getExamFolderId(String folderName, Drive driveService) throws IOException {
+        String pageToken = null;
+        FileList result = Utils.executeWithBackoff(driveService.files().list()
+                .setQ("name = '" + folderName + "' and mimeType = 'application/vnd.google-apps.folder'")
+                .setSpaces("drive")
+                .setFields("nextPageToken, files(id, name)")
+                .setPageToken(pageToken));
+        File examFolder = result.getFiles().get(0);
+        System.out.printf("Found exam folder %s (%s)\n", examFolder.getName(), examFolder.getId());
+        return examFolder.getId();
+    }
+
+    private static String getStudentExamFolderId(String examFolderId, Drive driveService) throws IOException {
+        String pageToken = null;
+        FileList result = Utils.executeWithBackoff(driveService.files().list()
+                .setQ("name = 'Student Exams' and parents = '" + examFolderId + "'")
+                .setSpaces("drive")
+                .setFields("nextPageToken, files(id, name)")
+                .setPageToken(pageToken));
+        File studentExamFolder = result.getFiles().get(0);
+        return studentExamFolder.getId();
+    }
+
+    static String escape(String raw) {
+        String escaped = raw;
+        escaped = escaped.replace("\\", "\\\\");
+        escaped = escaped.replace("'", "\\'");
+        escaped = escaped.replace("\"", "\\\"");
+        escaped = escaped.replace("\b", "\\b");
+        escaped = escaped.replace("\f", "\\f");
+        escaped = escaped.replace("\n", "\\n");
+        escaped = escaped.replace("\r", "\\r");
+        escaped = escaped.replace("\t", "\\t");
+        // TODO: escape other non-printing characters using uXXXX notation
+        return escaped;
+    }
+
+    private static List<String> getQuestionFolderIDs(String examFolderID, Drive driveService) throws IOException {
+        String pageToken = null;
+
+        List<File> questionFolders = new ArrayList<>();
+
+        // There could be lots of these.
+        do {
+            FileList result =  Utils.executeWithBackoff(driveService.files().list()
+                    .setQ("name contains 'Q' and parents = '" + examFolderID + "' and mimeType = 'application/vnd.google-apps.folder'")
+                    .setSpaces("drive")
+                    .setFields("nextPageToken, files(id, name)")
+                    .setPageToken(pageToken));
+            questionFolders.addAll(result.getFiles());
+            pageToken = result.getNextPageToken();
+        } while (pageToken != null);
+
+        questionFolders.sort(Comparator.comparing(File::getName));
+        questionFolders.forEach(f -> System.out.println("Found Question Folder: " + f.getName() + " (" + f.getId() +")"));
+
+        return questionFolders.stream().map(File::getId).collect(Collectors.toList());
+    }
+
+    /**
+     * Loads every variant of every question, listing the question folders several at a time and in parallel. Only
+     * files (not subfolders) count as variants, and each question's variants are ordered by name.
+     */
+    private static Exam buildExam(List<String> questionFolderIDs, Drive driveService) throws IOException {
+        long start = System.nanoTime();
+        Map<String, List<File>> variantFiles = Utils.listChildren(questionFolderIDs,
+                "mimeType != 'application/vnd.google-apps.folder'", "id, name", PARALLEL_LISTINGS, driveService);
+
+        Exam exam = new Exam();
+        int variants = 0;
+        for (String qf : questionFolderIDs){
+            List<File> files = new ArrayList<>(variantFiles.get(qf));
+            if (files.isEmpty())
+                throw new IOException("Question folder " + qf + " has no variants.");
+            files.sort(Comparator.comparing(File::getName));
+
+            Question question = new Question();
+            for (File vf : files){
+                question.addVariant(vf.getName(), vf.getId());
+            }
+            exam.addQuestion(question);
+            variants += files.size();
+        }
+
+        System.out.printf("Loaded %d questions with %d variants in %d ms.\n",
+                exam.size(), variants, (System.nanoTime() - start) / 1000000);
+        return exam;
+    }
+
+    /**
+     * Loads the exam's Student Exams index, finding the folder first if the snapshot doesn't have it, and gives it to
+     * the exam's state, resuming any unfinished timed shares the first time.
+     */
+    private static StudentExamIndex openStudentExams(ExamState state, ExamSnapshot snapshot, Roster roster, int batchCount, Drive driveService) throws IOException {
+        if (snapshot.getStudentExamsFolderId() == null) {
+            snapshot.setStudentExamsFolderId(getStudentExamFolderId(snapshot.getExamFolderId(), driveService));
+            snapshot.save();
+        }
+        StudentExamIndex studentExams = StudentExamIndex.load(snapshot.getStudentExamsFolderId(), driveService);
+        state.setStudentExams(studentExams);
+        state.setBatchSize(batchCount);
+        state.resume(roster);
+        return studentExams;
+    }
+
+    /**
+     * Allocates variants over the whole class, so a student's variants don't depend on who else is being generated.
+     */
+    private static VariantAllocator.Allocation allocate(CommandLine line, Exam exam, String examFolderId, List<Student> allStudents) {
+        long variantSeed = line.hasOption("seed") ? Long.parseLong(line.getOptionValue("seed")) : VariantAllocator.seedFor(examFolderId);
+        System.out.println("Allocating variants with seed " + variantSeed + ".");
+        return new VariantAllocator(variantSeed, exam.getVariantCounts(), line.hasOption("spread"))
+                .allocate(allStudents);
+    }
+
+    /**
+     * @return the exam from the snapshot, or discovered and loaded from Drive (and saved to the snapshot) if the
+     * snapshot doesn't have it.
+     */
+    private static Exam loadExam(ExamSnapshot snapshot, String examFolderId, Drive driveService) throws IOException {
+        Exam exam = snapshot.getExam();
+        if (exam == null) {
+            List<String> questionFolderIDs = getQuestionFolderIDs(examFolderId, driveService);
+            exam = buildExam(questionFolderIDs, driveService);
+            snapshot.setExam(questionFolderIDs, exam);
+            snapshot.save();
+        }
+        return exam;
+    }
+
+    /**
+     * @return the IDs of the ClassList spreadsheets in the exam folder, i.e. every spreadsheet whose name starts with
+     * ClassList (one per section, say), ordered by name.
+     */
+    private static List<String> getClassListIds(String examFolderID, Drive driveService) throws IOException {
+        String pageToken = null;
+        List<File> classLists = new ArrayList<>();
+        do {
+            FileList result = Utils.executeWithBackoff(driveService.files().list()
+                    .setQ("name contains 'ClassList' and parents = '" + examFolderID + "' and mimeType = 'application/vnd.google-apps.spreadsheet' and trashed = false")
+                    .setSpaces("drive")
+                    .setFields("nextPageToken, files(id, name)")
+                    .setPageToken(pageToken));
+            for (File f : result.getFiles()) {
+                if (f.getName().startsWith("ClassList"))
+                    classLists.add(f);
+            }
+            pageToken = result.getNextPageToken();
+        } while (pageToken != null);
+
+        if (classLists.isEmpty())
+            throw new FileNotFoundException("No ClassList found in the exam folder.");
+        classLists.sort(Comparator.comparing(File::getName));
+        classLists.forEach(f -> System.out.printf("Found file %s (%s)\n", f.getName(), f.getId()));
+        return classLists.stream().map(File::getId).collect(Collectors.toList());
+    }
+
+    public static void moveFile(String fileId, String folderId, Drive driveService) throws IOException {
+        // Retrieve the existing parents to remove
+        File file = Utils.executeWithBackoff(driveService.files().get(fileId)
+                .setFields("parents"));
+        StringBuilder previousParents = new StringBuilder();
+        for (String parent : file.getParents()) {
+            previousParents.append(parent);
+            previousParents.append(',');
+        }
+        // Move the file to the new folder
+        file = Utils.executeWithBackoff(driveService.files().update(fileId, null)
+                .setAddParents(folderId)
+                .setRemoveParents(previousParents.toString())
+                .setFields("id, parents"));
+    }
+
+    /**
+     * Copies the file straight into the destination folder, so a copy never exists outside of it. The copy is tagged
+     * with the ID of the file it was copied from (see folderContents).
+     */
+    public static File copyQuestionFile(String fileId, String fileName, String destFolderId, Drive driveService) throws IOException {
+        File copiedFile = new File();
+        copiedFile.setName(fileName);
+        copiedFile.setParents(Collections.singletonList(destFolderId));
+        copiedFile.setAppProperties(Collections.singletonMap(VARIANT_PROPERTY, fileId));
+        return Utils.executeWithBackoff(driveService.files().copy(fileId, copiedFile)
+                .setFields("id"));
+    }
+
+    /**
+     * @return the IDs of the variants the files in a student's exam folder were copied from, for the copies tagged
+     * with them (see copyQuestionFile).
+     */
+    static Set<String> copiedVariants(List<File> files) {
+        Set<String> ids = new HashSet<>();
+        for (File file : files) {
+            if (file.getAppProperties() != null && file.getAppProperties().containsKey(VARIANT_PROPERTY))
+                ids.add(file.getAppProperties().get(VARIANT_PROPERTY));
+        }
+        return ids;
+    }
+
+    /**
+     * @return the names of the files in a student's exam folder which aren't tagged with a variant: merged documents,
+     * PDFs, and copies made before copies were tagged.
+     */
+    static List<String> untaggedNames(List<File> files) {
+        List<String> names = new ArrayList<>();
+        for (File file : files) {
+            if (file.getAppProperties() == null || !file.getAppProperties().containsKey(VARIANT_PROPERTY))
+                names.add(file.getName());
+        }
+        return names;
+    }
+
+    /**
+     * @return what a student's exam folder holds, in the terms expectedFiles uses: the ID of each variant copied into
+     * it, and the names of its other files. Variants of different questions can share a name, so an untagged copy is
+     * matched by name to the first of the student's variants not yet matched, and only counts for that one.
+     */
+    static Set<String> folderContents(List<File> files, List<Question.QuestionVariant> variant) {
+        Set<String> contents = copiedVariants(files);
+        List<String> untagged = untaggedNames(files);
+        for (Question.QuestionVariant qv : variant) {
+            if (!contents.contains(qv.getId()) && untagged.remove(qv.getName()))
+                contents.add(qv.getId());
+        }
+        contents.addAll(untagged);
+        return contents;
+    }
+
+    /**
+     * @return what a student's complete exam folder holds, as folderContents gives it: their exam PDF if assembling
+     * PDFs, otherwise their merged document, if merging and any of their variants can be merged, and a copy of each
+     * other variant.
+     */
+    static Set<String> expectedFiles(Student student, List<Question.QuestionVariant> variant, DocumentMerger merger, PdfAssembler pdfs) throws IOException {
+        if (pdfs != null)
+            return Collections.singleton(PdfAssembler.fileName(student));
+        Set<String> names = new HashSet<>();
+        for (Question.QuestionVariant qv : variant) {
+            if (merger != null && merger.canMerge(qv))
+                names.add(student.toString());
+            else
+                names.add(qv.getId());
+        }
+        return names;
+    }
+
+    /**
+     * Builds whatever is missing of the student's exam folder: the folder itself if existingFolderId is null, and a
+     * copy of each variant not among existingFiles (as folderContents gives them). With a merger, the variants which can be merged go
+     * into one document named after the student instead of being copied. With a PDF assembler, the folder holds just
+     * one PDF of all the variants instead.
+     * @return the ID of the student's exam folder.
+     */
+    public static String buildStudentExamFolder(Student student, List<Question.QuestionVariant> variant, String studentExamFolderId, String existingFolderId, Set<String> existingFiles, DocumentMerger merger, PdfAssembler pdfs, Drive driveService) throws IOException {
+        String folderId = existingFolderId;
+        if (folderId == null) {
+            File studentsWorkFolder = new File();
+            studentsWorkFolder.setName(student.toString());
+            studentsWorkFolder.setMimeType("application/vnd.google-apps.folder");
+            studentsWorkFolder.setParents(Collections.singletonList(studentExamFolderId));
+            studentsWorkFolder = Utils.executeWithBackoff(driveService.files().create(studentsWorkFolder)
+                    .setFields("id"));
+            folderId = studentsWorkFolder.getId();
+            System.out.println("Built exam folder: " + student.toString()+ " (" + folderId + ")");
+        }
+
+        if (pdfs != null) {
+            if (!existingFiles.contains(PdfAssembler.fileName(student)))
+                pdfs.buildStudentPdf(student, variant, folderId);
+            return folderId;
+        }
+
+        List<Question.QuestionVariant> merged = new ArrayList<>();
+        for (Question.QuestionVariant qv : variant){
+            if (merger != null && merger.canMerge(qv))
+                merged.add(qv);
+            else if (!existingFiles.contains(qv.getId()))
+                copyQuestionFile(qv.getId(), qv.getName(), folderId, driveService);
+        }
+        if (!merged.isEmpty() && !existingFiles.contains(student.toString()))
+            merger.buildMergedExam(student.toString(), merged, studentExamFolderId, folderId, driveService);
+        return folderId;
+    }
+
+    public static String createVariantSheet(Sheets sheetsService, String examFolderId, Drive driveService) throws IOException {
+        Spreadsheet spreadsheet = new Spreadsheet()
+                .setProperties(new SpreadsheetProperties()
+                        .setTitle("GeneratedVariants"));
+        spreadsheet = Utils.executeWithBackoff(sheetsService.spreadsheets().create(spreadsheet)
+                .setFields("spreadsheetId"));
+        String sheetId = spreadsheet.getSpreadsheetId();
+        moveFile(sheetId, examFolderId, driveService);
+        return sheetId;
+    }
+
+    /**
+     * @return the ID of the file with the given name directly inside the parent folder, or null if there isn't one.
+     */
+    private static String findChildId(String name, String parentId, Drive driveService) throws IOException {
+        FileList result = Utils.executeWithBackoff(driveService.files().list()
+                .setQ("name = '" + escape(name) + "' and parents = '" + parentId + "' and trashed = false")
+                .setSpaces("drive")
+                .setFields("files(id, name)"));
+        return result.getFiles().isEmpty() ? null : result.getFiles().get(0).getId();
+    }
+
+    /**
+     * Generates a folder for each student, building up to workers folders at once. Generation picks up where any
+     * earlier run left off: the Student Exams folder and GeneratedVariants sheet are reused if they exist, students
+     * already in GeneratedVariants keep their variants, and only the folders and files which are missing are created.
+     * Rows for newly assigned students are written to GeneratedVariants as they're assigned, in the order the
+     * students are given. If merge is set each student's questions are merged into one document where possible. If pdf
+     * is set each student gets one PDF of their questions instead, assembled locally. docsService is only used when
+     * merging, and may be null otherwise.
+     */
+    public static String createStudentExams(String examFolderId, Exam exam, VariantAllocator.Allocation allocation, Collection<Student> students, int workers, boolean merge, boolean pdf, Drive driveService, Docs docsService, Sheets sheetsService) throws IOException {
+        String studentExamsFolderId = findChildId("Student Exams", examFolderId, driveService);
+        if (studentExamsFolderId == null) {
+            File fileMetadata = new File();
+            fileMetadata.setName("Student Exams");
+            fileMetadata.setMimeType("application/vnd.google-apps.folder");
+            fileMetadata.setParents(Collections.singletonList(examFolderId));
+
+            studentExamsFolderId = Utils.executeWithBackoff(driveService.files().create(fileMetadata)
+                    .setFields("id")).getId();
+        }
+        System.out.println("studentExamsFolder ID: " + studentExamsFolderId);
+
+        String variantSheetId = findChildId("GeneratedVariants", examFolderId, driveService);
+        if (variantSheetId == null)
+            variantSheetId = createVariantSheet(sheetsService, examFolderId, driveService);
+
+        StudentExamIndex studentExams = StudentExamIndex.load(studentExamsFolderId, driveService);
+        Map<String, List<File>> existingFiles = Utils.listChildren(students.stream()
+                .map(studentExams::lookup)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList()), null, "name, appProperties", PARALLEL_LISTINGS, driveService);
+
+        DocumentMerger merger = null;
+        if (merge) {
+            merger = new DocumentMerger(docsService);
+            merger.load(exam, PARALLEL_LISTINGS);
+        }
+        PdfAssembler pdfs = null;
+        if (pdf) {
+            pdfs = new PdfAssembler(driveService);
+            pdfs.load(exam, PARALLEL_LISTINGS);
+        }
+
+        IOException failure;
+        try (VariantLog variantLog = VariantLog.open(variantSheetId, sheetsService)) {
+            failure = buildStudentExams(exam, allocation, students, workers, studentExamsFolderId, studentExams, existingFiles, variantLog, merger, pdfs, driveService);
+        }
+
+        if (failure != null)
+            throw failure;
+
+        return studentExamsFolderId;
+    }
+
+    /**
+     * Assigns variants to any student without them, recording each in the variant log before their folder is built,
+     * and builds whatever is missing of each student's folder on a pool of workers.
+     * @return the first failure building a folder, or null if every folder was built.
+     */
+    private static IOException buildStudentExams(Exam exam, VariantAllocator.Allocation allocation, Collection<Student> students, int workers, String studentExamsFolderId, StudentExamIndex studentExams, Map<String, List<File>> existingFiles, VariantLog variantLog, DocumentMerger merger, PdfAssembler pdfs, Drive driveService) throws IOException {
+        Map<String, List<String>> assigned = variantLog.getAssigned();
+        List<Future<Void>> builds = new ArrayList<>();
+
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        AtomicInteger built = new AtomicInteger();
+        int complete = 0;
+        long start = System.nanoTime();
+
+        for (Student s : students) {
+            String existingFolderId = studentExams.lookup(s);
+            List<File> files = existingFolderId == null ? Collections.emptyList() : existingFiles.getOrDefault(existingFolderId, Collections.emptyList());
+
+            List<Question.QuestionVariant> variant = assignedVariant(exam, s, assigned.get(s.getId()));
+            if (variant == null) {
+                // An earlier run may have copied files without getting to record them, keep those.
+                variant = exam.getExamVariant(allocation, s, copiedVariants(files), untaggedNames(files));
+
+                List<Object> row = new ArrayList<>();
+                row.add(s.getLastname()); row.add(s.getFirstname()); row.add(s.getId()); row.add(s.getEmail());
+                for (Question.QuestionVariant qv : variant) {
+                    row.add(qv.getName());
+                }
+                variantLog.add(row);
+
+                System.out.println(s + " : " + variant);
+            }
+
+            Set<String> existing = folderContents(files, variant);
+            if (existingFolderId != null && existing.containsAll(expectedFiles(s, variant, merger, pdfs))) {
+                complete++;
+                continue;
+            }
+
+            final List<Question.QuestionVariant> toBuild = variant;
+            builds.add(pool.submit(() -> {
+                String examId;
+                try {
+                    examId = buildStudentExamFolder(s, toBuild, studentExamsFolderId, existingFolderId, existing, merger, pdfs, driveService);
+                } catch (HttpResponseException e) {
+                    if (existingFolderId == null || e.getStatusCode() != 404)
+                        throw e;
+                    // The indexed folder is gone. Build a new one, unless re-listing found another folder already.
+                    Map<Student, String> current = studentExams.recheck(Collections.singleton(s));
+                    if (!current.containsKey(s) || current.get(s) != null)
+                        throw new IOException("The exam folder of " + s + " has changed since it was indexed, run again to build it.", e);
+                    examId = buildStudentExamFolder(s, toBuild, studentExamsFolderId, null, Collections.emptySet(), merger, pdfs, driveService);
+                }
+                studentExams.put(s, examId);
+                int n = built.incrementAndGet();
+                if (n % 25 == 0)
+                    System.out.printf("%d student exams built.\n", n);
+                return null;
+            }));
+        }
+        pool.shutdown();
+        System.out.printf("%d student exams are already complete, building %d.\n", complete, builds.size());
+
+        IOException failure = null;
+        for (Future<Void> build : builds) {
+            try {
+                build.get();
+            } catch (ExecutionException e) {
+                System.err.println("Failed to build a student exam: " + e.getCause());
+                if (failure == null)
+                    failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while building student exams.", e);
+            }
+        }
+
+        double minutes = (System.nanoTime() - start) / 60e9;
+        System.out.printf("Built %d student exams in %.1f minutes (%.1f students/minute, %d workers).\n",
+                built.get(), minutes, minutes > 0 ? built.get() / minutes : 0.0, workers);
+
+        return failure;
+    }
+
+    /**
+     * @return the variants already recorded for the student, or null if they haven't been assigned any (or their
+     * recorded variants no longer match the exam, in which case they're assigned new ones).
+     */
+    static List<Question.QuestionVariant> assignedVariant(Exam exam, Student s, List<String> names) {
+        if (names == null)
+            return null;
+        List<Question.QuestionVariant> variant = new ArrayList<>();
+        for (int i = 0; i < names.size(); i++) {
+            Question.QuestionVariant qv = exam.findVariant(i, names.get(i));
+            if (qv == null) {
+                System.err.println("Recorded variant " + names.get(i) + " for " + s + " is no longer in the exam, assigning new variants.");
+                return null;
+            }
+            variant.add(qv);
+        }
+        return variant.size() == exam.size() ? variant : null;
+    }
+
+    /**
+     * @return the request granting a student write access to their exam folder, given each student's folder ID.
+     */
+    static Utils.BatchItemRequest<Student, Permission> shareRequest(Map<Student, String> examIds, Drive driveService) {
+        return s -> driveService.permissions().create(examIds.get(s), new Permission()
+                .setType("user")
+                .setRole("writer")
+                .setEmailAddress(s.getEmail()))
+                .setFields("id");
+    }
+
+    /**
+     * @return the request deleting a student's recorded permission, given each student's folder and permission IDs.
+     */
+    static Utils.BatchItemRequest<Student, Void> unshareRequest(Map<Student, String> examIds, Map<Student, String> permissionIds, Drive driveService) {
+        return s -> driveService.permissions().delete(examIds.get(s), permissionIds.get(s));
+    }
+
+    /**
+     * Grants each student write access to their exam folder, in Drive batches, and records the permission IDs in the
+     * ledger so they can be revoked directly.
+     */
+    public static void shareExamsWithStudents(Collection<Student> students, StudentExamIndex studentExams, PermissionLedger ledger, int batchSize, Drive driveService) throws IOException {
+        Map<Student, String> examIds = studentExams.getExamIds(students);
+
+        long start = System.nanoTime();
+        Map<Student, Permission> granted = new LinkedHashMap<>(Utils.executeInBatches(driveService, examIds.keySet(), batchSize, PARALLEL_BATCHES,
+                shareRequest(examIds, driveService)));
+        ledger.granted(granted, examIds);
+        granted.putAll(regrant(examIds.keySet(), granted.keySet(), studentExams, ledger, batchSize, driveService));
+
+        granted.forEach((s, permission) -> System.out.println(s + " Permission ID: " + permission.getId()));
+        System.out.printf("Shared %d of %d exams in %.1f seconds.\n", granted.size(), students.size(), (System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Grants access again to any student who wasn't granted it because their indexed folder no longer exists, at the
+     * folder they have now if the Student Exams folder has one for them.
+     * @return the permission granted to each student this time.
+     */
+    static Map<Student, Permission> regrant(Collection<Student> students, Set<Student> granted, StudentExamIndex studentExams, PermissionLedger ledger, int batchSize, Drive driveService) throws IOException {
+        List<Student> failed = students.stream().filter(s -> !granted.contains(s)).collect(Collectors.toList());
+        Map<Student, String> examIds = new LinkedHashMap<>(studentExams.recheck(failed));
+        examIds.values().removeIf(Objects::isNull);
+        if (examIds.isEmpty())
+            return Collections.emptyMap();
+        Map<Student, Permission> regranted = Utils.executeInBatches(driveService, examIds.keySet(), batchSize, PARALLEL_BATCHES,
+                shareRequest(examIds, driveService));
+        ledger.granted(regranted, examIds);
+        return regranted;
+    }
+
+    /**
+     * Revokes the students' access to their exam folders. Permissions recorded in the ledger are deleted by ID
+     * straight away. For any student the ledger has nothing for, or whose recorded permission couldn't be deleted,
+     * the folder's permissions are listed and every writer permission is removed. The deletes and lists are each
+     * sent as Drive batch requests, several batches at a time. Any student still not revoked has their folder checked,
+     * in case it's gone from Drive, and is revoked again at the folder they have now. Students who still have access
+     * because Drive refused a request outright (as opposed to one which failed every retry) are added to rejected, as
+     * trying again soon won't help them.
+     * @return the students who no longer have access: those revoked, and any without an exam folder to revoke.
+     */
+    public static Set<Student> unshareExamsWithStudents(Collection<Student> students, StudentExamIndex studentExams, PermissionLedger ledger, int batchSize, Drive driveService, Set<Student> rejected) throws IOException {
+        return unshareExamsWithStudents(students, studentExams, ledger, batchSize, driveService, rejected, true);
+    }
+
+    private static Set<Student> unshareExamsWithStudents(Collection<Student> students, StudentExamIndex studentExams, PermissionLedger ledger, int batchSize, Drive driveService, Set<Student> rejected, boolean recheck) throws IOException {
+        long start = System.nanoTime();
+
+        Map<Student, String> examIds = studentExams.getExamIds(students);
+        // Students without an exam folder have nothing to revoke.
+        Set<Student> revoked = new HashSet<>(students);
+        revoked.removeAll(examIds.keySet());
+
+        Map<Student, String> recorded = new LinkedHashMap<>();
+        List<Student> unrecorded = new ArrayList<>();
+        examIds.forEach((s, examId) -> {
+            String permissionId = ledger.getPermissionId(s, examId);
+            if (permissionId != null)
+                recorded.put(s, permissionId);
+            else
+                unrecorded.add(s);
+        });
+
+        Map<Student, Void> deleted = Utils.executeInBatches(driveService, recorded.keySet(), batchSize, PARALLEL_BATCHES,
+                unshareRequest(examIds, recorded, driveService));
+        ledger.revoked(deleted.keySet());
+        revoked.addAll(deleted.keySet());
+
+        List<Student> stale = recorded.keySet().stream().filter(s -> !deleted.containsKey(s)).collect(Collectors.toList());
+        if (!stale.isEmpty())
+            System.out.println(stale.size() + " recorded permissions couldn't be deleted, listing those folders' permissions instead.");
+        unrecorded.addAll(stale);
+
+        // A recorded permission which can't be deleted is looked for by listing, so only refusals from here on count.
+        Set<Student> refused = new HashSet<>();
+        int listed = 0;
+        if (!unrecorded.isEmpty()) {
+            Map<Student, PermissionList> currentPermissions = Utils.executeInBatches(driveService, unrecorded, batchSize, PARALLEL_BATCHES,
+                    s -> driveService.permissions().list(examIds.get(s))
+                            .setFields("permissions(id, role)"), refused);
+
+            // Each writer permission is keyed by its student and permission ID.
+            List<Map.Entry<Student, String>> writers = new ArrayList<>();
+            currentPermissions.forEach((s, permissions) -> {
+                for (Permission p : permissions.getPermissions()) {
+                    if (p.getRole().equals("writer"))
+                        writers.add(new AbstractMap.SimpleImmutableEntry<>(s, p.getId()));
+                }
+            });
+
+            Set<Map.Entry<Student, String>> refusedWriters = new HashSet<>();
+            Map<Map.Entry<Student, String>, Void> deletedWriters = Utils.executeInBatches(driveService, writers, batchSize, PARALLEL_BATCHES,
+                    w -> driveService.permissions().delete(examIds.get(w.getKey()), w.getValue()), refusedWriters);
+            refusedWriters.forEach(w -> refused.add(w.getKey()));
+
+            // Students whose folder was listed and had every writer permission removed no longer have access.
+            Set<Student> cleared = new HashSet<>(currentPermissions.keySet());
+            writers.stream().filter(w -> !deletedWriters.containsKey(w)).forEach(w -> cleared.remove(w.getKey()));
+            ledger.revoked(cleared);
+            revoked.addAll(cleared);
+            listed = cleared.size();
+        }
+
+        System.out.printf("Revoked access for %d of %d students in %.1f seconds (%d by recorded permission ID, %d by listing permissions).\n",
+                deleted.size() + listed, students.size(), (System.nanoTime() - start) / 1e9, deleted.size(), listed);
+
+        if (recheck) {
+            List<Student> failed = students.stream().filter(s -> !revoked.contains(s)).collect(Collectors.toList());
+            List<Student> moved = new ArrayList<>();
+            studentExams.recheck(failed).forEach((s, examId) -> {
+                // A folder that's gone with no other in its place leaves nothing to have access to.
+                if (examId == null)
+                    revoked.add(s);
+                else
+                    moved.add(s);
+            });
+            if (!moved.isEmpty()) {
+                // Refused at the old folder says nothing about the new one.
+                refused.removeAll(moved);
+                revoked.addAll(unshareExamsWithStudents(moved, studentExams, ledger, batchSize, driveService, refused, false));
+            }
+        }
+        refused.removeAll(revoked);
+        rejected.addAll(refused);
+        return revoked;
+    }
+
+    /**
+     * @return when each student's access should end if shared at sharedAt, using their override time if they have one.
+     */
+    static Map<Student, Long> deadlines(Collection<Student> students, long sharedAt, int defaultTime) {
+        return deadlines(students, Collections.emptyMap(), sharedAt, defaultTime);
+    }
+
+    /**
+     * @return when each student's access should end, counting from when they were granted access if that's in
+     * grantedAt, and from sharedAt otherwise.
+     */
+    static Map<Student, Long> deadlines(Collection<Student> students, Map<Student, Long> grantedAt, long sharedAt, int defaultTime) {
+        Map<Student, Long> deadlines = new LinkedHashMap<>();
+        for (Student s : students) {
+            deadlines.put(s, grantedAt.getOrDefault(s, sharedAt) + s.getOverrideTime().orElse(defaultTime) * 60000L);
+        }
+        return deadlines;
+    }
+
+    /**
+     * @return the given time (14:00 or 14:00:30 for today, or a date and time like 2020-12-10T14:00) in milliseconds
+     * since the epoch.
+     */
+    static long parseTime(String time) {
+        LocalDateTime dateTime = time.contains("T") ? LocalDateTime.parse(time) : LocalDate.now().atTime(LocalTime.parse(time));
+        return dateTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * Supplies what authorizes each request to Google, asked for only once a service client is built.
+     */
+    interface CredentialSource {
+        HttpRequestInitializer get(HttpTransport transport) throws IOException;
+    }
+
+    public static void main(String... args) throws IOException, GeneralSecurityException {
+        final NetHttpTransport HTTP_TRANSPORT = GoogleNetHttpTransport.newTrustedTransport();
+        if (!run(HTTP_TRANSPORT, ExamGenerator::getCredentials, args))
+            System.exit(-1);
+    }
+
+    /**
+     * Runs the command line against the given transport. main runs it against Google itself; the load test runs it
+     * against an in-process fake.
+     * @return whether the command line was valid.
+     */
+    static boolean run(HttpTransport transport, CredentialSource credentials, String... args) throws IOException {
+        ApiMetrics.reset();
+        GoogleServices services = new GoogleServices(transport, credentials);
+        try {
+            return execute(services, new HashMap<>(), false, args);
+        } finally {
+            ApiMetrics.report();
+            services.shutdown();
+        }
+    }
+
+    /**
+     * Carries out one command line. exams holds the state of each exam shared so far, which the daemon keeps from one
+     * command to the next, and only one command at a time works on any one exam. As a daemon or manifest command,
+     * timed shares are left running when the command returns rather than waited out. Only the clients the command
+     * needs are built.
+     * @return whether the command line was valid.
+     */
+    static boolean execute(GoogleServices services, Map<String, ExamState> exams, boolean daemon, String... args) throws IOException {
+        String folderName = "";
+
+        /* CLI Stuff */
+        CommandLineParser parser = new DefaultParser();
+        Options options = new Options();
+
+        Option help = Option.builder("h").longOpt("help").desc("print this message.").build();
+        Option generate = Option.builder("g").longOpt("generate").desc("generate the exams on Google Drive. Only exams (or parts of exams) which don't exist yet are created.").build();
+        Option folder = Option.builder("f")
+                .longOpt("folder")
+                .hasArg(true)
+                .argName("name")
+                .desc("folder name where the exam is stored on Google Drive. [Required]")
+                .build();
+
+        Option share = Option.builder("s")
+                .longOpt("share")
+                .hasArg(true)
+                .optionalArg(true)
+                .argName("howlong?")
+                .desc("share the exam for the amount of time (in minutes) specified, or indefinitely if no time given. Only if a time is given will override times will be used if provided in the ClassList.")
+                .build();
+
+        Option shareAt = Option.builder()
+                .longOpt("share-at")
+                .hasArg(true)
+                .argName("time")
+                .desc("with --share, share with everyone at once at the given time (e.g. 14:00, 14:00:30 or 2020-12-10T14:00) rather than right away. A timed share lasts from when each student got access.")
+                .build();
+
+        Option unshare = Option.builder("u")
+                .longOpt("unshare")
+                .desc("unshare the exam.")
+                .build();
+
+        Option workers = Option.builder("w")
+                .longOpt("workers")
+                .hasArg(true)
+                .argName("n")
+                .desc("number of student exams to generate in parallel. Default " + DEFAULT_WORKERS + ".")
+                .build();
+
+        Option maxInFlight = Option.builder()
+                .longOpt("max-in-flight")
+                .hasArg(true)
+                .argName("n")
+                .desc("maximum number of Google API requests outstanding at once. Default " + DEFAULT_MAX_IN_FLIGHT + ".")
+                .build();
+
+        Option rate = Option.builder()
+                .longOpt("rate")
+                .hasArg(true)
+                .argName("requests/s")
+                .desc("maximum rate of Google API requests, shared by all threads. Default " + Utils.DEFAULT_RATE_LIMIT + ".")
+                .build();
+
+        Option batchSize = Option.builder("b")
+                .longOpt("batch-size")
+                .hasArg(true)
+                .argName("n")
+                .desc("number of permission changes sent per Drive batch request, at most " + Utils.MAX_BATCH_SIZE + ". Default " + DEFAULT_BATCH_SIZE + ".")
+                .build();
+
+        Option seed = Option.builder()
+                .longOpt("seed")
+                .hasArg(true)
+                .argName("n")
+                .desc("seed for allocating question variants. Defaults to one derived from the exam folder, so the same exam always gets the same allocation.")
+                .build();
+
+        Option spread = Option.builder()
+                .longOpt("spread")
+                .desc("when generating, make sure students with neighbouring IDs get different variants of each question.")
+                .build();
+
+        Option merge = Option.builder()
+                .longOpt("merge")
+                .desc("when generating, put each student's questions into one Google Doc rather than copying each question's file. Questions which can't be merged (with tables or images, say) are still copied.")
+                .build();
+
+        Option pdf = Option.builder()
+                .longOpt("pdf")
+                .desc("when generating, give each student one PDF of their questions rather than a copy of each question's file.")
+                .build();
+
+        Option transport = Option.builder()
+                .longOpt("transport")
+                .hasArg(true)
+                .argName("type")
+                .desc("how to connect to Google: net (the default) opens connections as needed, pooled keeps a pool of them open to each host, which suits many requests in flight.")
+                .build();
+
+        Option connections = Option.builder()
+                .longOpt("connections")
+                .hasArgs()
+                .argName("n")
+                .desc("with the pooled transport, the most connections to keep to each host, optionally followed by limits for particular hosts (e.g. sheets.googleapis.com=4). Defaults to --max-in-flight.")
+                .build();
+
+        Option daemonOption = Option.builder()
+                .longOpt("daemon")
+                .hasArg(true)
+                .optionalArg(true)
+                .argName("port")
+                .desc("keep running, taking commands over HTTP on localhost at the given port (default " + ExamDaemon.DEFAULT_PORT + "). See the README.")
+                .build();
+
+        Option plan = Option.builder()
+                .longOpt("plan")
+                .desc("with --generate, --share or --unshare, print the API calls they would make and how long they would take, flagging any over Google's quotas, without changing anything in Drive.")
+                .build();
+
+        Option manifest = Option.builder()
+                .longOpt("manifest")
+                .hasArg(true)
+                .argName("file")
+                .desc("run every command in the file, one per line, in one process sharing one rate limit. Exams run side by side, and sharing and unsharing go ahead of generating. See the README.")
+                .build();
+
+        Option only = Option.builder("o")
+                .longOpt("only")
+                .hasArgs()
+                .argName("id list")
+                .desc("perform the generate/share/unshare operation for only the students with IDs listed. If not specified the default behavior is all students.")
+                .build();
+
+        Option except = Option.builder("e")
+                .longOpt("except")
+                .hasArgs()
+                .argName("id list")
+                .desc("perform the generate/share/unshare operation for all students except those with the IDs listed.")
+                .build();
+
+        options.addOption(help);
+        options.addOption(generate);
+        options.addOption(folder);
+        options.addOption(share);
+        options.addOption(shareAt);
+        options.addOption(unshare);
+        options.addOption(only);
+        options.addOption(except);
+        options.addOption(workers);
+        options.addOption(maxInFlight);
+        options.addOption(batchSize);
+        options.addOption(rate);
+        options.addOption(seed);
+        options.addOption(spread);
+        options.addOption(merge);
+        options.addOption(pdf);
+        options.addOption(transport);
+        options.addOption(connections);
+        options.addOption(daemonOption);
+        options.addOption(manifest);
+        options.addOption(plan);
+
+        try {
+            CommandLine line = parser.parse( options, args );
+
+            if (line.hasOption("help") || (!line.hasOption("folder") && !line.hasOption("daemon") && !line.hasOption("manifest"))) {
+                HelpFormatter formatter = new HelpFormatter();
+                formatter.printHelp("Exam Generator", options);
+                return true;
+            }
+
+            if (line.hasOption("folder")){
+                folderName = line.getOptionValue("folder");
+            }
+
+            // Error  conditions:
+            if(line.hasOption("only") && line.hasOption("except")){
+                System.out.println("Cannot use only and except together.");
+                return false;
+            }
+            if(line.hasOption("share") && line.hasOption("unshare")){
+                System.out.println("Cannot share and unshare simultaneously. If you wish to share then unshare after a delay, pass a time as an argument to the share option.");
+                return false;
+            }
+            if(line.hasOption("share-at") && !line.hasOption("share")){
+                System.out.println("Cannot use share-at without share.");
+                return false;
+            }
+            long shareAtMillis = 0;
+            if(line.hasOption("share-at")){
+                try {
+                    shareAtMillis = parseTime(line.getOptionValue("share-at"));
+                } catch (DateTimeParseException e) {
+                    System.out.println("Couldn't read the share-at time " + line.getOptionValue("share-at") + ". Give it as 14:00, 14:00:30 or 2020-12-10T14:00.");
+                    return false;
+                }
+                if (shareAtMillis <= System.currentTimeMillis()) {
+                    System.out.println("The share-at time has already passed.");
+                    return false;
+                }
+            }
+            if(line.hasOption("merge") && line.hasOption("pdf")){
+                System.out.println("Cannot use merge and pdf together.");
+                return false;
+            }
+
+            if(daemon && (line.hasOption("daemon") || line.hasOption("manifest"))){
+                System.out.println("Already running as a daemon or from a manifest.");
+                return false;
+            }
+
+            final int batchCount = Integer.parseInt(line.getOptionValue("batch-size", String.valueOf(DEFAULT_BATCH_SIZE)));
+            // The limits are shared by everything the daemon or a manifest runs, so they're only set when it starts.
+            if (!daemon) {
+                Utils.setRateLimit(Double.parseDouble(line.getOptionValue("rate", String.valueOf(Utils.DEFAULT_RATE_LIMIT))));
+                int maxInFlightCount = Integer.parseInt(line.getOptionValue("max-in-flight", String.valueOf(DEFAULT_MAX_IN_FLIGHT)));
+                Utils.setMaxInFlight(maxInFlightCount);
+
+                String transportName = line.getOptionValue("transport", "net");
+                if (transportName.equals("pooled")) {
+                    int perHost = maxInFlightCount;
+                    Map<String, Integer> hostLimits = new HashMap<>();
+                    for (String limit : line.getOptionValues("connections") == null ? new String[0] : line.getOptionValues("connections")) {
+                        int split = limit.indexOf('=');
+                        if (split < 0)
+                            perHost = Integer.parseInt(limit);
+                        else
+                            hostLimits.put(limit.substring(0, split), Integer.parseInt(limit.substring(split + 1)));
+                    }
+                    PooledTransport pool = new PooledTransport(perHost, hostLimits);
+                    services.usePool(pool);
+                    ApiMetrics.setConnectionPool(pool);
+                } else if (!transportName.equals("net")) {
+                    System.out.println("Unknown transport " + transportName + ", use net or pooled.");
+                    return false;
+                }
+            } else if (line.hasOption("rate") || line.hasOption("max-in-flight") || line.hasOption("transport") || line.hasOption("connections")) {
+                System.out.println("Ignoring --rate, --max-in-flight, --transport and --connections, which are set when the daemon or manifest run starts.");
+            }
+
+            if (line.hasOption("daemon")) {
+                int port = Integer.parseInt(line.getOptionValue("daemon", String.valueOf(ExamDaemon.DEFAULT_PORT)));
+                new ExamDaemon(services, port).serve();
+                return true;
+            }
+
+            if (line.hasOption("manifest")) {
+                return new ExamManifest(services, Paths.get(line.getOptionValue("manifest"))).run();
+            }
+
+            Drive driveService = services.getDrive();
+
+            // All below rely on some state we can sort out here.
+            ExamSnapshot snapshot = ExamSnapshot.load(folderName, driveService);
+            if (snapshot.getExamFolderId() == null || snapshot.getClassListIds() == null) {
+                snapshot.setExamFolderId(getExamFolderId(folderName, driveService));
+                snapshot.setClassListIds(getClassListIds(snapshot.getExamFolderId(), driveService));
+                snapshot.save();
+            }
+            String examFolderId = snapshot.getExamFolderId();
+            Roster roster = Roster.load(snapshot.getClassListIds(), services.getSheets());
+            List<Student> allStudents = roster.getStudents();
+            final Set<Student> students = new HashSet<>();
+
+            // Setting up student set.
+            if(line.getOptionValues("only") != null) {
+                Set<String> onlyStudentIds = new HashSet<>(Arrays.asList(line.getOptionValues("only")));
+                students.addAll(roster.getStudentsById(onlyStudentIds));
+            }
+            else if(line.getOptionValues("except") != null) {
+                Set<String> exceptStudentIds = new HashSet<>(Arrays.asList(line.getOptionValues("except")));
+                students.addAll(allStudents);
+                students.removeAll(roster.getStudentsById(exceptStudentIds));
+            }
+            else {
+                students.addAll(allStudents);
+            }
+
+            ExamState state = ExamState.open(exams, examFolderId, driveService);
+            state.setFolderName(folderName);
+
+            if (line.hasOption("plan")) {
+                if (!line.hasOption("generate") && !line.hasOption("share") && !line.hasOption("unshare")) {
+                    System.out.println("Nothing to plan, give --generate, --share or --unshare as well.");
+                    return false;
+                }
+                synchronized (state) {
+                    printPlan(line, snapshot, allStudents, students, state.getLedger(), batchCount, services);
+                }
+                if (!daemon)
+                    state.getScheduler().shutdown();
+                return true;
+            }
+            // A --share-at release is prepared under the exam's lock, but waits for its start time without it so the
+            // exam's other commands (an unshare, say) aren't held up until then. It takes the lock again to share.
+            ShareRelease release = null;
+            try {
+                synchronized (state) {
+                    // Main operations
+                    if (line.hasOption("generate")){
+                        // Generating is bulk work, which waits behind anything else sharing the rate limit.
+                        Lane previous = Lane.enter(Lane.Priority.BULK);
+                        try {
+                            Exam exam = loadExam(snapshot, examFolderId, driveService);
+
+                            int workerCount = Integer.parseInt(line.getOptionValue("workers", String.valueOf(DEFAULT_WORKERS)));
+                            VariantAllocator.Allocation allocation = allocate(line, exam, examFolderId, allStudents);
+
+                            // Keep the ClassList order for the GeneratedVariants rows.
+                            List<Student> toGenerate = allStudents.stream().filter(students::contains).collect(Collectors.toList());
+                            snapshot.setStudentExamsFolderId(createStudentExams(examFolderId, exam, allocation, toGenerate, workerCount, line.hasOption("merge"), line.hasOption("pdf"), driveService, line.hasOption("merge") ? services.getDocs() : null, services.getSheets()));
+                            snapshot.save();
+                        } finally {
+                            Lane.restore(previous);
+                        }
+                    }
+
+                    if (line.hasOption("share") && line.hasOption("share-at")) {
+                        Lane previous = Lane.enter(Lane.Priority.URGENT);
+                        try {
+                            StudentExamIndex studentExams = openStudentExams(state, snapshot, roster, batchCount, driveService);
+                            release = new ShareRelease(shareAtMillis, students, studentExams, snapshot.getStudentExamsFolderId(), batchCount, driveService);
+
+                            final String howLong = line.getOptionValue("share");
+                            if (howLong != null) {
+                                // As below, journaled before anything is granted, then again from when each student got access.
+                                state.getJournal().shared(deadlines(students, shareAtMillis, Integer.parseInt(howLong)));
+                            }
+                            else {
+                                students.forEach(state.getScheduler()::cancel);
+                                state.getJournal().done(students);
+                            }
+                        } finally {
+                            Lane.restore(previous);
+                        }
+                    }
+                }
+
+                if (release != null) {
+                    Lane previous = Lane.enter(Lane.Priority.URGENT);
+                    try {
+                        release.awaitStart();
+                    } finally {
+                        Lane.restore(previous);
+                    }
+                }
+
+                synchronized (state) {
+                    // Timed shares from an earlier run of this exam which never finished are picked up here.
+                    ShareJournal journal = state.getJournal();
+                    PermissionLedger ledger = state.getLedger();
+                    UnshareScheduler scheduler = state.getScheduler();
+
+                    if (line.hasOption("share") || line.hasOption("unshare") || journal.hasOutstanding()) {
+                        StudentExamIndex studentExams = release != null ? state.getStudentExams() : openStudentExams(state, snapshot, roster, batchCount, driveService);
+
+                        // Granting and revoking access is time-critical, so it goes ahead of anything else.
+                        Lane previous = Lane.enter(Lane.Priority.URGENT);
+                        try {
+                            if (release != null){
+                                final String howLong = line.getOptionValue("share");
+                                Map<Student, Long> grantedAt = release.release(ledger);
+
+                                System.out.println(java.util.Calendar.getInstance().getTime() + " - Exams are now shared.");
+
+                                if (howLong != null) {
+                                    Map<Student, Long> deadlines = deadlines(students, grantedAt, System.currentTimeMillis(), Integer.parseInt(howLong));
+                                    journal.shared(deadlines);
+                                    deadlines.forEach(scheduler::schedule);
+                                }
+                            }
+                            else if (line.hasOption("share")){
+                                final String howLong = line.getOptionValue("share");
+
+                                if (howLong != null) {
+                                    // Journal the deadlines before granting anything, so a crash mid-share still gets revoked.
+                                    // They're journaled again below from when sharing finished, which is what's enforced.
+                                    final int defaultTime = Integer.parseInt(howLong);
+                                    journal.shared(deadlines(students, System.currentTimeMillis(), defaultTime));
+                                }
+                                else {
+                                    // Shared indefinitely, so any earlier deadline no longer applies.
+                                    students.forEach(scheduler::cancel);
+                                    journal.done(students);
+                                }
+
+                                shareExamsWithStudents(students, studentExams, ledger, batchCount, driveService);
+
+                                System.out.println(java.util.Calendar.getInstance().getTime() + " - Exams are now shared.");
+
+                                if (howLong != null) {
+                                    Map<Student, Long> deadlines = deadlines(students, System.currentTimeMillis(), Integer.parseInt(howLong));
+                                    journal.shared(deadlines);
+                                    deadlines.forEach(scheduler::schedule);
+                                }
+                            }
+
+                            if (line.hasOption("unshare")){
+                                students.forEach(scheduler::cancel);
+                                Set<Student> rejected = new HashSet<>();
+                                Set<Student> revoked = unshareExamsWithStudents(students, studentExams, ledger, batchCount, driveService, rejected);
+                                journal.done(revoked);
+
+                                // Anyone who still has access is journaled as due now. The scheduler keeps retrying
+                                // them, except those Drive refused, who are left for the next run.
+                                List<Student> failed = students.stream().filter(s -> !revoked.contains(s)).collect(Collectors.toList());
+                                if (!failed.isEmpty()) {
+                                    long now = System.currentTimeMillis();
+                                    Map<Student, Long> dueNow = new LinkedHashMap<>();
+                                    failed.forEach(s -> dueNow.put(s, now));
+                                    journal.shared(dueNow);
+                                    if (!rejected.isEmpty())
+                                        System.err.println("Couldn't revoke access for " + rejected.size() + " students, they're left in the journal for the next run: " + rejected);
+                                    failed.removeAll(rejected);
+                                    if (!failed.isEmpty())
+                                        System.err.println(failed.size() + " students still have access, retrying in the background.");
+                                    failed.forEach(s -> scheduler.schedule(s, now));
+                                }
+                            }
+                        } finally {
+                            Lane.restore(previous);
+                        }
+
+                        if (daemon) {
+                            if (scheduler.hasPending())
+                                System.out.println(scheduler.getDeadlines().size() + " timed shares of this exam are running, they'll be revoked in the background.");
+                            return true;
+                        }
+                        if (scheduler.hasPending()) {
+                            System.out.println("Waiting for the share to end. Press Enter at any time for the API metrics so far.");
+                            reportMetricsOnEnter();
+                        }
+                        try {
+                            scheduler.awaitCompletion();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        scheduler.printLagSummary();
+                    }
+                }
+            } finally {
+                if (release != null)
+                    release.close();
+            }
+            if (!daemon)
+                state.getScheduler().shutdown();
+            return true;
+        } catch (ParseException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Prints what the command line's operations would do, reading what's needed to count their calls but changing
+     * nothing in Drive. See ExamPlan.
+     */
+    private static void printPlan(CommandLine line, ExamSnapshot snapshot, List<Student> allStudents, Set<Student> students, PermissionLedger ledger, int batchCount, GoogleServices services) throws IOException {
+        Drive driveService = services.getDrive();
+        String examFolderId = snapshot.getExamFolderId();
+        // Kept in ClassList order, like generating.
+        List<Student> inScope = allStudents.stream().filter(students::contains).collect(Collectors.toList());
+
+        String studentExamsFolderId = snapshot.getStudentExamsFolderId();
+        if (studentExamsFolderId == null)
+            studentExamsFolderId = findChildId("Student Exams", examFolderId, driveService);
+        StudentExamIndex index = studentExamsFolderId == null ? null : StudentExamIndex.load(studentExamsFolderId, driveService);
+
+        ExamPlan plan = new ExamPlan(Utils.getRateLimit(), Utils.getMaxInFlight(), batchCount);
+        if (line.hasOption("generate")) {
+            Exam exam = loadExam(snapshot, examFolderId, driveService);
+            Map<String, List<File>> listed = index == null ? Collections.emptyMap() : Utils.listChildren(inScope.stream()
+                    .map(index::lookup)
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toList()), null, "name, appProperties", PARALLEL_LISTINGS, driveService);
+
+            // Each student's files are worked out just as generating does, from their recorded or allocated variants.
+            String variantSheetId = findChildId("GeneratedVariants", examFolderId, driveService);
+            Map<String, List<String>> assigned = variantSheetId == null ? Collections.emptyMap() : VariantLog.readAssigned(variantSheetId, services.getSheets());
+            VariantAllocator.Allocation allocation = allocate(line, exam, examFolderId, allStudents);
+            DocumentMerger merger = null;
+            if (line.hasOption("merge")) {
+                merger = new DocumentMerger(services.getDocs());
+                merger.load(exam, PARALLEL_LISTINGS);
+            }
+            PdfAssembler pdfs = line.hasOption("pdf") ? new PdfAssembler(driveService) : null;
+            Map<String, Set<String>> existingFiles = new HashMap<>();
+            Map<Student, Set<String>> expected = new HashMap<>();
+            int unassigned = 0;
+            for (Student s : inScope) {
+                String folderId = index == null ? null : index.lookup(s);
+                List<File> files = folderId == null ? Collections.emptyList() : listed.getOrDefault(folderId, Collections.emptyList());
+                List<Question.QuestionVariant> variant = assignedVariant(exam, s, assigned.get(s.getId()));
+                if (variant == null) {
+                    variant = exam.getExamVariant(allocation, s, copiedVariants(files), untaggedNames(files));
+                    unassigned++;
+                }
+                if (folderId != null)
+                    existingFiles.put(folderId, folderContents(files, variant));
+                expected.put(s, expectedFiles(s, variant, merger, pdfs));
+            }
+
+            int workerCount = Integer.parseInt(line.getOptionValue("workers", String.valueOf(DEFAULT_WORKERS)));
+            int cachedExports = pdfs != null ? pdfs.currentExports(exam, PARALLEL_LISTINGS) : 0;
+            plan.planGenerate(exam, inScope, workerCount, index, existingFiles, expected, unassigned, variantSheetId != null,
+                    merger != null, pdfs != null, cachedExports);
+        }
+        if (line.hasOption("share")) {
+            String howLong = line.getOptionValue("share");
+            plan.planShare(inScope, index, line.hasOption("generate"), line.hasOption("share-at"), howLong == null ? null : Integer.parseInt(howLong));
+        }
+        if (line.hasOption("unshare"))
+            plan.planUnshare(inScope, index, ledger);
+
+        System.out.println();
+        System.out.println("Plan for " + snapshot.getFolderName() + ", " + inScope.size() + " students:");
+        plan.print(System.out);
+    }
+
+    /**
+     * Prints and writes out the API metrics each time a line is entered, until the input ends. The thread is a daemon
+     * so it never keeps the program running.
+     */
+    static void reportMetricsOnEnter() {
+        Thread reader = new Thread(() -> {
+            BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+            try {
+                while (in.readLine() != null)
+                    ApiMetrics.report();
+            } catch (IOException e) {
+                // No console to read from.
+            }
+        }, "metrics-on-enter");
+        reader.setDaemon(true);
+        reader.start();
+    }
+}
@@ -0,0 +1,291 @@
+/*
+Runs a manifest of commands in one process, for when several exams (or sections) need generating and sharing at the
+same time. Each line of the manifest is a command line, exactly as it would be given to the program, for example:
+
+    # Finals, Thursday morning
+    -f "CSE 115 Final A" -g --pdf
+    -f "CSE 115 Final A" -s 120 --share-at 09:00
+    -f "CSE 116 Final" -u
+
+Blank lines and lines starting with # are skipped, and an argument containing spaces goes in double quotes. Every
+line needs a --folder. Each exam's lines run in order on a thread of its own, and different exams run side by side.
+
+Everything shares one rate limit, one request cap and one set of API clients, set up from the options the manifest is
+run with. Each exam gets its own lane in the rate limiter (see Lane), so sharing and unsharing, including revoking
+timed shares, go ahead of any exam's generating, and exams at the same priority take turns. Output is prefixed with
+the exam it's for, a progress table of every exam is printed every half minute and at the end, and the run then waits
+out any timed shares as a single run would.
+ */
+
+package examgenerator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class ExamManifest {
+    private static final long PROGRESS_INTERVAL_MILLIS = 30000;
+
+    private final GoogleServices services;
+    private final Path file;
+    private final Map<String, ExamState> exams = new ConcurrentHashMap<>();
+
+    /**
+     * One line of the manifest.
+     */
+    private static final class Command {
+        private final int lineNumber;
+        private final String[] args;
+
+        Command(int lineNumber, List<String> args) {
+            this.lineNumber = lineNumber;
+            this.args = args.toArray(new String[0]);
+        }
+    }
+
+    /**
+     * An exam's commands, and how far through them it is.
+     */
+    private static final class ExamRun {
+        private final String name;
+        private final List<Command> commands = new ArrayList<>();
+        private volatile String status = "waiting";
+        private volatile Lane lane;
+        private volatile long startedAt;
+        private volatile long finishedAt;
+        private volatile boolean valid = true;
+
+        ExamRun(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * Starts every line written by a thread working for an exam with the exam's name.
+     */
+    private static final class PrefixedOutput extends OutputStream {
+        private final OutputStream out;
+        // Whether each thread's own output is at the start of a line, so one thread's unfinished line doesn't decide
+        // whether another's gets its prefix.
+        private final ThreadLocal<Boolean> lineStart = ThreadLocal.withInitial(() -> true);
+
+        PrefixedOutput(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            String name = Lane.current().getName();
+            byte[] prefix = name.isEmpty() ? new byte[0] : ("[" + name + "] ").getBytes(StandardCharsets.UTF_8);
+            int end = off + len;
+            while (off < end) {
+                if (lineStart.get())
+                    out.write(prefix);
+                int next = off;
+                while (next < end && b[next] != '\n')
+                    next++;
+                boolean newline = next < end;
+                lineStart.set(newline);
+                if (newline)
+                    next++;
+                out.write(b, off, next - off);
+                off = next;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
+
+    public ExamManifest(GoogleServices services, Path file) {
+        this.services = services;
+        this.file = file;
+    }
+
+    /**
+     * Splits a line into arguments at whitespace, keeping anything in double quotes together.
+     */
+    static List<String> split(String line) {
+        List<String> args = new ArrayList<>();
+        StringBuilder arg = new StringBuilder();
+        boolean quoted = false, started = false;
+        for (char c : line.toCharArray()) {
+            if (c == '"') {
+                quoted = !quoted;
+                started = true;
+            } else if (Character.isWhitespace(c) && !quoted) {
+                if (started)
+                    args.add(arg.toString());
+                arg.setLength(0);
+                started = false;
+            } else {
+                arg.append(c);
+                started = true;
+            }
+        }
+        if (started)
+            args.add(arg.toString());
+        return args;
+    }
+
+    /**
+     * @return the --folder a command line is for, or null if it doesn't give one.
+     */
+    private static String folderOf(List<String> args) {
+        for (int i = 0; i < args.size(); i++) {
+            String arg = args.get(i);
+            if ((arg.equals("-f") || arg.equals("--folder")) && i + 1 < args.size())
+                return args.get(i + 1);
+            if (arg.startsWith("--folder="))
+                return arg.substring("--folder=".length());
+        }
+        return null;
+    }
+
+    /**
+     * @return each exam's commands, in the order the exams first appear, or null if a line can't be run.
+     */
+    private Map<String, ExamRun> read() throws IOException {
+        Map<String, ExamRun> runs = new LinkedHashMap<>();
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            List<String> args = split(line);
+            String folder = folderOf(args);
+            if (folder == null) {
+                System.out.println("Line " + (i + 1) + " of " + file + " has no --folder.");
+                return null;
+            }
+            runs.computeIfAbsent(folder, ExamRun::new).commands.add(new Command(i + 1, args));
+        }
+        return runs;
+    }
+
+    /**
+     * Runs every command in the manifest, then waits for any timed shares they started to end.
+     * @return whether every command line was valid.
+     */
+    public boolean run() throws IOException {
+        Map<String, ExamRun> runs = read();
+        if (runs == null)
+            return false;
+        int commands = runs.values().stream().mapToInt(r -> r.commands.size()).sum();
+        System.out.printf("Running %d commands for %d exams from %s.\n", commands, runs.size(), file);
+
+        PrintStream console = System.out, errors = System.err;
+        System.setOut(new PrintStream(new PrefixedOutput(console), true));
+        System.setErr(new PrintStream(new PrefixedOutput(errors), true));
+        ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "manifest-progress");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Thread> threads = new ArrayList<>();
+            for (ExamRun run : runs.values()) {
+                Thread thread = new Thread(() -> runExam(run), "manifest-" + run.name);
+                thread.start();
+                threads.add(thread);
+            }
+            progress.scheduleAtFixedRate(() -> printProgress(runs.values()), PROGRESS_INTERVAL_MILLIS, PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            for (Thread thread : threads)
+                thread.join();
+            progress.shutdown();
+            printProgress(runs.values());
+            awaitTimedShares();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            progress.shutdownNow();
+            for (ExamState state : exams.values())
+                state.getScheduler().shutdown();
+            System.setOut(console);
+            System.setErr(errors);
+        }
+        return runs.values().stream().allMatch(r -> r.valid);
+    }
+
+    /**
+     * Runs an exam's commands in order, in the exam's own lane. A command which is invalid or fails stops the ones
+     * after it, since they usually depend on it (sharing what was to be generated, say).
+     */
+    private void runExam(ExamRun run) {
+        run.lane = Lane.start(run.name);
+        run.startedAt = System.currentTimeMillis();
+        boolean completed = true;
+        for (int i = 0; i < run.commands.size(); i++) {
+            Command command = run.commands.get(i);
+            run.status = "running " + (i + 1) + " of " + run.commands.size();
+            System.out.println("Line " + command.lineNumber + ": " + String.join(" ", command.args));
+            long start = System.nanoTime();
+            try {
+                if (!ExamGenerator.execute(services, exams, true, command.args)) {
+                    run.valid = false;
+                    run.status = "invalid line " + command.lineNumber;
+                    System.out.println("Line " + command.lineNumber + " isn't a valid command, skipping the rest of this exam's commands.");
+                    completed = false;
+                    break;
+                }
+            } catch (IOException | RuntimeException e) {
+                run.status = "failed on line " + command.lineNumber;
+                System.err.println("Line " + command.lineNumber + " failed, skipping the rest of this exam's commands: " + e);
+                completed = false;
+                break;
+            }
+            System.out.printf("Finished line %d in %.1f seconds.\n", command.lineNumber, (System.nanoTime() - start) / 1e9);
+        }
+        if (completed)
+            run.status = "done";
+        run.finishedAt = System.currentTimeMillis();
+    }
+
+    private static void printProgress(Collection<ExamRun> runs) {
+        StringBuilder table = new StringBuilder();
+        table.append(new SimpleDateFormat("HH:mm:ss").format(new Date())).append(" - Progress:\n");
+        table.append(String.format("  %-30s %-20s %9s %8s %14s\n", "Exam", "Status", "Elapsed", "Calls", "Rate limited"));
+        long now = System.currentTimeMillis();
+        for (ExamRun run : runs) {
+            Lane lane = run.lane;
+            long elapsed = run.startedAt == 0 ? 0 : (run.finishedAt == 0 ? now : run.finishedAt) - run.startedAt;
+            table.append(String.format("  %-30s %-20s %7.1f s %8d %12.1f s\n", run.name, run.status, elapsed / 1e3,
+                    lane == null ? 0 : lane.getCalls(), lane == null ? 0.0 : lane.getWaitNanos() / 1e9));
+        }
+        System.out.print(table);
+    }
+
+    /**
+     * Waits for every exam's timed shares to be revoked, as a single run does after sharing.
+     */
+    private void awaitTimedShares() throws InterruptedException {
+        long pending = exams.values().stream().filter(s -> s.getScheduler().hasPending()).count();
+        if (pending == 0)
+            return;
+        System.out.println("Waiting for the timed shares of " + pending + " exams to end. Press Enter at any time for the API metrics so far.");
+        ExamGenerator.reportMetricsOnEnter();
+        for (ExamState state : exams.values()) {
+            state.getScheduler().awaitCompletion();
+            if (!state.getScheduler().getLagMillis().isEmpty() || !state.getScheduler().getUnrevoked().isEmpty()) {
+                System.out.print(state.getFolderName() + ": ");
+                state.getScheduler().printLagSummary();
+            }
+        }
+    }
+}
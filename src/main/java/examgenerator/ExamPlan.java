@@ -0,0 +1,427 @@
+/*
+Works out what a command would do before it's run: how many calls of each kind generating, sharing and unsharing would
+make (and how many HTTP requests those go out in, since Drive batches carry many calls each), how long each would take,
+and whether it would run into Google's per-user quotas. Nothing is changed in Drive. The plan reads what it needs to
+count from (the exam, the ClassList, the Student Exams folder and what's in each student's folder), the same reads the
+command itself would start with, and uses the local cache, ledger and PDF exports as the command would.
+
+Each phase of an operation takes as long as the slowest of three limits: its calls at the configured --rate, its
+requests spread over the calls it has in flight at once (each taking its operation's mean latency), and its calls
+within each service's per-user quota. Latencies are the means from earlier runs' metrics files, or rough defaults for
+operations no run has made yet. An operation is flagged if the quota, rather than the rate limit or concurrency, would
+hold it back, since that means Google would be throttling it with 429s.
+ */
+
+package examgenerator;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+public class ExamPlan {
+    private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+    private static final String METRICS_DIRECTORY_PATH = "metrics";
+
+    // Google's default per-user quotas, in calls per 100 seconds. Drive's is 1,000 per 100 seconds; Sheets and Docs
+    // allow 60 writes a minute.
+    private static final Map<String, Integer> QUOTAS = new LinkedHashMap<>();
+    static {
+        QUOTAS.put("drive", 1000);
+        QUOTAS.put("sheets", 100);
+        QUOTAS.put("docs", 100);
+    }
+
+    // Rough latencies for operations no earlier run has measured, in milliseconds. Calls inside a Drive batch are
+    // timed to the end of their batch, so theirs is a whole batch's.
+    private static final Map<String, Double> DEFAULT_LATENCY_MILLIS = new HashMap<>();
+    static {
+        DEFAULT_LATENCY_MILLIS.put("drive.files.copy", 1000.0);
+        DEFAULT_LATENCY_MILLIS.put("drive.files.create", 500.0);
+        DEFAULT_LATENCY_MILLIS.put("drive.files.export", 2000.0);
+        DEFAULT_LATENCY_MILLIS.put("drive.files.get", 200.0);
+        DEFAULT_LATENCY_MILLIS.put("drive.files.list", 300.0);
+        DEFAULT_LATENCY_MILLIS.put("drive.files.update", 400.0);
+        DEFAULT_LATENCY_MILLIS.put("drive.permissions.create", 1500.0);
+        DEFAULT_LATENCY_MILLIS.put("drive.permissions.delete", 1000.0);
+        DEFAULT_LATENCY_MILLIS.put("drive.permissions.list", 800.0);
+        DEFAULT_LATENCY_MILLIS.put("docs.documents.batchUpdate", 800.0);
+        DEFAULT_LATENCY_MILLIS.put("docs.documents.get", 400.0);
+    }
+    private static final double FALLBACK_LATENCY_MILLIS = 300.0;
+
+    private final double rate;
+    private final int maxInFlight;
+    private final int batchSize;
+    private final Map<String, Double> latencies;
+    private final int runsMeasured;
+    private final Set<String> defaulted = new TreeSet<>();
+    private final List<Operation> operations = new ArrayList<>();
+
+    /**
+     * Calls which go out together, up to parallelism requests at once.
+     */
+    private static final class Phase {
+        private final String name;
+        private final int parallelism;
+        // Sent all at once, ahead of the rate limit, as --share-at does.
+        private final boolean burst;
+        // Calls and requests, by operation.
+        private final Map<String, long[]> calls = new TreeMap<>();
+
+        Phase(String name, int parallelism, boolean burst) {
+            this.name = name;
+            this.parallelism = parallelism;
+            this.burst = burst;
+        }
+
+        Phase add(String operation, long n, long requests) {
+            if (n > 0) {
+                long[] c = calls.computeIfAbsent(operation, o -> new long[2]);
+                c[0] += n;
+                c[1] += requests;
+            }
+            return this;
+        }
+
+        Phase add(String operation, long n) {
+            return add(operation, n, n);
+        }
+
+        long total() {
+            return calls.values().stream().mapToLong(c -> c[0]).sum();
+        }
+    }
+
+    /**
+     * One of the command's operations. Its phases run one after another, unless they're separate, like the
+     * revocations at each deadline of a timed share, which happen at different times.
+     */
+    private static final class Operation {
+        private final String name;
+        private final String summary;
+        private final boolean separate;
+        private final List<Phase> phases = new ArrayList<>();
+
+        Operation(String name, String summary, boolean separate) {
+            this.name = name;
+            this.summary = summary;
+            this.separate = separate;
+        }
+
+        Phase phase(String name, int parallelism) {
+            Phase phase = new Phase(name, parallelism, false);
+            phases.add(phase);
+            return phase;
+        }
+    }
+
+    public ExamPlan(double rate, int maxInFlight, int batchSize) throws IOException {
+        this.rate = rate;
+        this.maxInFlight = maxInFlight;
+        this.batchSize = batchSize;
+        this.latencies = new HashMap<>();
+        this.runsMeasured = loadLatencies(latencies);
+    }
+
+    /**
+     * Adds up every operation's calls and time across the metrics files of earlier runs.
+     * @return how many runs were read.
+     */
+    private static int loadLatencies(Map<String, Double> latencies) throws IOException {
+        Path dir = Paths.get(METRICS_DIRECTORY_PATH);
+        if (!Files.isDirectory(dir))
+            return 0;
+        Map<String, double[]> totals = new HashMap<>();
+        int runs = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "run-*.json")) {
+            for (Path file : files) {
+                GenericJson json;
+                try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                    json = JSON_FACTORY.fromReader(in, GenericJson.class);
+                } catch (IOException | IllegalArgumentException e) {
+                    continue;
+                }
+                Object operations = json.get("operations");
+                if (!(operations instanceof Map))
+                    continue;
+                runs++;
+                for (Map.Entry<?, ?> e : ((Map<?, ?>) operations).entrySet()) {
+                    Map<?, ?> op = (Map<?, ?>) e.getValue();
+                    if (op.get("calls") instanceof BigDecimal && op.get("totalSeconds") instanceof BigDecimal) {
+                        double[] t = totals.computeIfAbsent(e.getKey().toString(), k -> new double[2]);
+                        t[0] += ((BigDecimal) op.get("calls")).doubleValue();
+                        t[1] += ((BigDecimal) op.get("totalSeconds")).doubleValue();
+                    }
+                }
+            }
+        }
+        totals.forEach((op, t) -> {
+            if (t[0] > 0)
+                latencies.put(op, t[1] * 1000 / t[0]);
+        });
+        return runs;
+    }
+
+    private double latencyMillis(String operation) {
+        Double measured = latencies.get(operation);
+        if (measured != null)
+            return measured;
+        defaulted.add(operation);
+        return DEFAULT_LATENCY_MILLIS.getOrDefault(operation, FALLBACK_LATENCY_MILLIS);
+    }
+
+    private static long pages(long items, int perPage) {
+        return Math.max(1, (items + perPage - 1) / perPage);
+    }
+
+    private long batches(long items) {
+        return (items + batchSize - 1) / batchSize;
+    }
+
+    /**
+     * Plans generating the students' exams, picking up where any earlier run left off the way generating does.
+     * @param index the Student Exams folder's index, or null if the folder doesn't exist yet.
+     * @param existingFiles the files in each student's exam folder, by folder ID, as ExamGenerator.folderContents
+     * gives them.
+     * @param expectedFiles the files each student's complete exam folder holds, in the same terms, as generating works
+     * them out.
+     * @param unassigned how many of the students have no variants recorded yet, and so need a GeneratedVariants row.
+     * @param cachedExports how many of the exam's variants already have a current PDF export in the local cache.
+     */
+    public void planGenerate(Exam exam, Collection<Student> students, int workers, StudentExamIndex index, Map<String, Set<String>> existingFiles,
+                             Map<Student, Set<String>> expectedFiles, int unassigned, boolean variantSheetExists, boolean merge, boolean pdf, int cachedExports) {
+        int variants = Arrays.stream(exam.getVariantCounts()).sum();
+        int folders = 0, copies = 0, created = 0, complete = 0;
+        long existingFolders = 0;
+        Phase build = new Phase("building student exams", workers, false);
+        for (Student s : students) {
+            String folderId = index == null ? null : index.lookup(s);
+            Set<String> existing = folderId == null ? Collections.emptySet() : existingFiles.getOrDefault(folderId, Collections.emptySet());
+            if (folderId != null)
+                existingFolders++;
+            Set<String> missing = new HashSet<>(expectedFiles.get(s));
+            missing.removeAll(existing);
+            if (folderId != null && missing.isEmpty()) {
+                complete++;
+                continue;
+            }
+            if (folderId == null) {
+                build.add("drive.files.create", 1);
+                folders++;
+            }
+            for (String name : missing) {
+                if (pdf) {
+                    build.add("drive.files.create", 1);
+                    created++;
+                } else if (merge && name.equals(s.toString())) {
+                    build.add("drive.files.create", 1).add("docs.documents.batchUpdate", 1).add("drive.files.update", 1);
+                    created++;
+                } else {
+                    build.add("drive.files.copy", 1);
+                    copies++;
+                }
+            }
+        }
+        build.add("sheets.spreadsheets.values.batchUpdate", unassigned == 0 ? 0 : pages(unassigned, VariantLog.FLUSH_ROWS));
+
+        String files = pdf ? created + " PDFs to upload"
+                : merge ? created + " merged documents, " + copies + " files to copy"
+                : copies + " files to copy";
+        String summary = String.format("%d of %d students to build (%d new folders, %s), %d already complete.",
+                students.size() - complete, students.size(), folders, files, complete);
+        Operation op = new Operation("generate", summary, false);
+        Phase setup = op.phase("finding the Student Exams folder and GeneratedVariants", 1)
+                .add("drive.files.list", 2)
+                .add("sheets.spreadsheets.values.get", 1);
+        if (index == null)
+            setup.add("drive.files.create", 1);
+        else
+            setup.add("drive.files.get", 1).add("drive.files.list", pages(existingFolders, StudentExamIndex.PAGE_SIZE));
+        if (!variantSheetExists)
+            setup.add("sheets.spreadsheets.create", 1).add("drive.files.get", 1).add("drive.files.update", 1);
+        if (existingFolders > 0)
+            op.phase("listing existing student folders", ExamGenerator.PARALLEL_LISTINGS)
+                    .add("drive.files.list", (existingFolders + Utils.PARENTS_PER_QUERY - 1) / Utils.PARENTS_PER_QUERY);
+        if (merge)
+            op.phase("fetching variant documents", ExamGenerator.PARALLEL_LISTINGS)
+                    .add("docs.documents.get", variants);
+        if (pdf)
+            op.phase("exporting variants to PDF", ExamGenerator.PARALLEL_LISTINGS)
+                    .add("drive.files.get", variants, pages(variants, Utils.MAX_BATCH_SIZE))
+                    .add("drive.files.export", variants - cachedExports);
+        op.phases.add(build);
+        operations.add(op);
+    }
+
+    /**
+     * Plans sharing with the students, and revoking their access at their deadlines if minutes is given.
+     * @param generating whether the command generates first, in which case every student will have a folder.
+     * @param shareAt whether every grant is sent at once at a set time.
+     */
+    public void planShare(Collection<Student> students, StudentExamIndex index, boolean generating, boolean shareAt, Integer minutes) {
+        List<Student> found = new ArrayList<>();
+        for (Student s : students) {
+            if (generating || (index != null && index.lookup(s) != null))
+                found.add(s);
+        }
+        int missing = students.size() - found.size();
+        long requests = batches(found.size());
+        Operation op = new Operation("share", String.format("%d students to grant access%s%s.", found.size(),
+                missing > 0 ? ", " + missing + " have no exam folder and would be skipped" : "",
+                shareAt ? ", all at once at the start time" : ""), false);
+        op.phase("checking the Student Exams index", 1).add("drive.files.get", 1);
+        if (shareAt) {
+            op.phase("warming up connections", (int) Math.max(1, requests)).add("drive.files.get", requests);
+            Phase release = new Phase("granting access", (int) Math.max(1, requests), true);
+            release.add("drive.permissions.create", found.size(), requests);
+            op.phases.add(release);
+        } else {
+            op.phase("granting access", ExamGenerator.PARALLEL_BATCHES).add("drive.permissions.create", found.size(), requests);
+        }
+        operations.add(op);
+
+        if (minutes == null || found.isEmpty())
+            return;
+        // Everyone with the same allowance is due at about the same moment, and revoked together.
+        Map<Integer, Integer> groups = new TreeMap<>();
+        for (Student s : found)
+            groups.merge(s.getOverrideTime().orElse(minutes), 1, Integer::sum);
+        Operation revoke = new Operation("revoke at deadlines", String.format("%d students in %d deadline groups (%s minutes), by recorded permission ID.",
+                found.size(), groups.size(), groups.keySet().stream().map(String::valueOf).reduce((a, b) -> a + ", " + b).orElse("")), true);
+        groups.forEach((allowance, n) -> revoke.phase("revoking the " + allowance + " minute group", ExamGenerator.PARALLEL_BATCHES)
+                .add("drive.permissions.delete", n, batches(n)));
+        operations.add(revoke);
+    }
+
+    /**
+     * Plans revoking the students' access: by recorded permission ID where the ledger has one, otherwise by listing
+     * the folder's permissions (assuming one writer permission to delete in each).
+     */
+    public void planUnshare(Collection<Student> students, StudentExamIndex index, PermissionLedger ledger) {
+        int recorded = 0, unrecorded = 0;
+        for (Student s : students) {
+            String examId = index == null ? null : index.lookup(s);
+            if (examId == null)
+                continue;
+            if (ledger.getPermissionId(s, examId) != null)
+                recorded++;
+            else
+                unrecorded++;
+        }
+        int missing = students.size() - recorded - unrecorded;
+        Operation op = new Operation("unshare", String.format("%d students by recorded permission ID, %d by listing permissions%s.",
+                recorded, unrecorded, missing > 0 ? ", " + missing + " have no exam folder" : ""), false);
+        op.phase("checking the Student Exams index", 1).add("drive.files.get", 1);
+        op.phase("deleting recorded permissions", ExamGenerator.PARALLEL_BATCHES).add("drive.permissions.delete", recorded, batches(recorded));
+        if (unrecorded > 0) {
+            op.phase("listing permissions", ExamGenerator.PARALLEL_BATCHES).add("drive.permissions.list", unrecorded, batches(unrecorded));
+            op.phase("deleting listed permissions", ExamGenerator.PARALLEL_BATCHES).add("drive.permissions.delete", unrecorded, batches(unrecorded));
+        }
+        operations.add(op);
+    }
+
+    private static String service(String operation) {
+        return operation.substring(0, operation.indexOf('.'));
+    }
+
+    private static String duration(double seconds) {
+        if (seconds < 60)
+            return String.format("%.1f seconds", seconds);
+        if (seconds < 3600)
+            return String.format("%.1f minutes", seconds / 60);
+        return String.format("%.1f hours", seconds / 3600);
+    }
+
+    /**
+     * Estimates how long a phase takes, and prints it, along with any quota it would go over.
+     * @return the estimate, in seconds.
+     */
+    private double estimate(Phase phase, PrintStream out) {
+        long total = phase.total();
+        if (total == 0)
+            return 0;
+        double byRate = phase.burst ? 0 : total / rate;
+        double work = 0;
+        for (Map.Entry<String, long[]> e : phase.calls.entrySet())
+            work += e.getValue()[1] * latencyMillis(e.getKey()) / 1000;
+        double byConcurrency = work / Math.max(1, Math.min(phase.parallelism, maxInFlight));
+
+        Map<String, Long> byService = new TreeMap<>();
+        phase.calls.forEach((op, c) -> byService.merge(service(op), c[0], Long::sum));
+        // A whole quota's worth can go at once, and the rest as it refills.
+        double byQuota = 0;
+        String quotaService = null;
+        for (Map.Entry<String, Long> e : byService.entrySet()) {
+            Integer quota = QUOTAS.get(e.getKey());
+            double seconds = quota == null ? 0 : Math.max(0, e.getValue() - quota) * 100.0 / quota;
+            if (seconds > byQuota) {
+                byQuota = seconds;
+                quotaService = e.getKey();
+            }
+        }
+
+        double seconds = Math.max(byRate, Math.max(byConcurrency, byQuota));
+        String limit = quotaService != null && byQuota > Math.max(byRate, byConcurrency) ? quotaService + "'s quota"
+                : byRate >= byConcurrency ? "the rate limit" : "requests in flight";
+        out.printf("  %-48s %s (%s)\n", phase.name + ":", duration(seconds), limit);
+        if (quotaService != null && byQuota > Math.max(byRate, byConcurrency)) {
+            int quota = QUOTAS.get(quotaService);
+            if (phase.burst)
+                out.printf("  ! Sends %d %s calls at once, over the per-user quota of %d per 100 seconds. Google would throttle the rest, delaying their grants.\n",
+                        byService.get(quotaService), quotaService, quota);
+            else
+                out.printf("  ! %d %s calls would go over the per-user quota of %d per 100 seconds at --rate %.1f. Expect 429s and backoff; a --rate of %.1f or less stays within it.\n",
+                        byService.get(quotaService), quotaService, quota, rate, quota / 100.0);
+        }
+        return seconds;
+    }
+
+    public void print(PrintStream out) {
+        out.printf("Limits: --rate %.1f calls/s, --max-in-flight %d, --batch-size %d.\n", rate, maxInFlight, batchSize);
+        for (Operation op : operations) {
+            out.println();
+            out.println(op.name + ": " + op.summary);
+            Map<String, long[]> totals = new TreeMap<>();
+            for (Phase phase : op.phases)
+                phase.calls.forEach((name, c) -> {
+                    long[] t = totals.computeIfAbsent(name, n -> new long[2]);
+                    t[0] += c[0];
+                    t[1] += c[1];
+                });
+            out.printf("  %-40s %8s %9s\n", "API call", "calls", "requests");
+            long calls = 0, requests = 0;
+            for (Map.Entry<String, long[]> e : totals.entrySet()) {
+                out.printf("  %-40s %8d %9d\n", e.getKey(), e.getValue()[0], e.getValue()[1]);
+                calls += e.getValue()[0];
+                requests += e.getValue()[1];
+            }
+            out.printf("  %-40s %8d %9d\n", "total", calls, requests);
+
+            double seconds = 0;
+            for (Phase phase : op.phases) {
+                double s = estimate(phase, out);
+                seconds = op.separate ? Math.max(seconds, s) : seconds + s;
+            }
+            out.println(op.separate ? "  Each group takes up to about " + duration(seconds) + " from its deadline."
+                    : "  About " + duration(seconds) + " in all.");
+        }
+        out.println();
+        if (runsMeasured > 0)
+            out.printf("Latencies are the means over %d earlier runs' metrics.", runsMeasured);
+        else
+            out.print("No earlier runs' metrics were found.");
+        out.println(defaulted.isEmpty() ? "" : " Rough defaults were used for " + String.join(", ", defaulted) + ".");
+        out.println("Nothing was changed in Drive.");
+    }
+}
@@ -0,0 +1,216 @@
+/*
+A local snapshot of an exam's folder tree on Drive: the exam folder, its question folders and their variants, the
+ClassList and the Student Exams folder. Repeated commands against the same exam use it instead of walking the tree
+again.
+
+The snapshot is kept valid using the Drive changes feed. It stores the page token from just before the tree was walked,
+and each load lists the changes since then. If any of them touches the tree (a variant added, renamed or removed, a new
+folder in the exam folder, a ClassList moved or replaced, ...) the snapshot is discarded and rebuilt. When nothing has
+changed, the only cost is a single changes.list call.
+ */
+
+package examgenerator;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.util.Key;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.ChangeList;
+
+import java.io.IOException;
+import java.util.*;
+
+public class ExamSnapshot extends GenericJson {
+    private static final String FOLDER_MIME_TYPE = "application/vnd.google-apps.folder";
+
+    public static class QuestionSnapshot extends GenericJson {
+        @Key
+        private String folderId;
+
+        @Key
+        private List<String> names;
+
+        @Key
+        private List<String> ids;
+    }
+
+    @Key
+    private String folderName;
+
+    @Key
+    private String changesToken;
+
+    @Key
+    private String examFolderId;
+
+    @Key
+    private List<String> classListIds;
+
+    @Key
+    private String studentExamsFolderId;
+
+    @Key
+    private List<QuestionSnapshot> questions;
+
+    private static String cacheName(String folderName) {
+        return "exam-" + folderName.replaceAll("[^A-Za-z0-9_-]", "_") + ".json";
+    }
+
+    /**
+     * Loads the snapshot for the named exam, or starts an empty one if there's none or it's out of date.
+     */
+    public static ExamSnapshot load(String folderName, Drive driveService) throws IOException {
+        ExamSnapshot snapshot = LocalCache.read(cacheName(folderName), ExamSnapshot.class);
+        if (snapshot != null && folderName.equals(snapshot.folderName) && snapshot.changesToken != null) {
+            if (snapshot.revalidate(driveService)) {
+                System.out.println("Using the cached snapshot of " + folderName + ".");
+                return snapshot;
+            }
+            System.out.println("The exam folder has changed since it was cached, rediscovering it.");
+        }
+
+        snapshot = new ExamSnapshot();
+        snapshot.folderName = folderName;
+        // Taken before anything is discovered, so changes made while discovering are caught next time.
+        snapshot.changesToken = Utils.executeWithBackoff(driveService.changes().getStartPageToken()).getStartPageToken();
+        return snapshot;
+    }
+
+    /**
+     * Reads the changes since the snapshot was taken, moving the snapshot's token forward if none of them matter.
+     * @return whether the snapshot is still valid.
+     */
+    private boolean revalidate(Drive driveService) throws IOException {
+        Set<String> tracked = new HashSet<>();
+        Set<String> questionFolders = new HashSet<>();
+        tracked.add(examFolderId);
+        if (studentExamsFolderId != null)
+            tracked.add(studentExamsFolderId);
+        // A ClassList moved out of the exam folder, trashed or renamed (a new one is caught by its parent below).
+        if (classListIds != null)
+            tracked.addAll(classListIds);
+        if (questions != null) {
+            for (QuestionSnapshot q : questions) {
+                questionFolders.add(q.folderId);
+                tracked.addAll(q.ids);
+            }
+        }
+        tracked.addAll(questionFolders);
+
+        String pageToken = changesToken;
+        while (true) {
+            ChangeList changes = Utils.executeWithBackoff(driveService.changes().list(pageToken)
+                    .setPageSize(1000)
+                    .setSpaces("drive")
+                    .setFields("nextPageToken, newStartPageToken, changes(fileId, removed, file(name, mimeType, parents, trashed))"));
+            for (Change c : changes.getChanges()) {
+                if (affects(c, tracked, questionFolders))
+                    return false;
+            }
+            if (changes.getNewStartPageToken() != null) {
+                changesToken = changes.getNewStartPageToken();
+                break;
+            }
+            pageToken = changes.getNextPageToken();
+        }
+        save();
+        return true;
+    }
+
+    private boolean affects(Change c, Set<String> tracked, Set<String> questionFolders) {
+        if (tracked.contains(c.getFileId()))
+            return true;
+        if (c.getFile() == null || c.getFile().getParents() == null)
+            return false;
+        for (String parent : c.getFile().getParents()) {
+            // A variant added to a question.
+            if (questionFolders.contains(parent))
+                return true;
+            // A new question folder, Student Exams folder or ClassList (the ClassLists' contents aren't cached). Other
+            // files here, like GeneratedVariants, change all the time and don't matter.
+            if (parent.equals(examFolderId) && (FOLDER_MIME_TYPE.equals(c.getFile().getMimeType()) || isClassList(c.getFile().getName())))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean isClassList(String name) {
+        return name != null && name.startsWith("ClassList");
+    }
+
+    /**
+     * @return the snapshot of every exam in the local cache, without checking whether they're still valid.
+     */
+    public static List<ExamSnapshot> cached() throws IOException {
+        List<ExamSnapshot> snapshots = new ArrayList<>();
+        for (String name : LocalCache.list("exam-*.json")) {
+            ExamSnapshot snapshot = LocalCache.read(name, ExamSnapshot.class);
+            if (snapshot != null && snapshot.folderName != null)
+                snapshots.add(snapshot);
+        }
+        return snapshots;
+    }
+
+    public void save() throws IOException {
+        LocalCache.write(cacheName(folderName), this);
+    }
+
+    public String getFolderName() {
+        return folderName;
+    }
+
+    public String getExamFolderId() {
+        return examFolderId;
+    }
+
+    public void setExamFolderId(String examFolderId) {
+        this.examFolderId = examFolderId;
+    }
+
+    public List<String> getClassListIds() {
+        return classListIds;
+    }
+
+    public void setClassListIds(List<String> classListIds) {
+        this.classListIds = classListIds;
+    }
+
+    public String getStudentExamsFolderId() {
+        return studentExamsFolderId;
+    }
+
+    public void setStudentExamsFolderId(String studentExamsFolderId) {
+        this.studentExamsFolderId = studentExamsFolderId;
+    }
+
+    /**
+     * @return the exam as it was snapshotted, or null if its questions haven't been loaded yet.
+     */
+    public Exam getExam() {
+        if (questions == null)
+            return null;
+        Exam exam = new Exam();
+        for (QuestionSnapshot qs : questions) {
+            Question question = new Question();
+            for (int i = 0; i < qs.ids.size(); i++)
+                question.addVariant(qs.names.get(i), qs.ids.get(i));
+            exam.addQuestion(question);
+        }
+        return exam;
+    }
+
+    public void setExam(List<String> questionFolderIds, Exam exam) {
+        questions = new ArrayList<>();
+        for (int i = 0; i < questionFolderIds.size(); i++) {
+            QuestionSnapshot qs = new QuestionSnapshot();
+            qs.folderId = questionFolderIds.get(i);
+            qs.names = new ArrayList<>();
+            qs.ids = new ArrayList<>();
+            for (Question.QuestionVariant qv : exam.getQuestions().get(i).getVariants()) {
+                qs.names.add(qv.getName());
+                qs.ids.add(qv.getId());
+            }
+            questions.add(qs);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+What sharing an exam keeps between commands: its share journal, its permission ledger, and the scheduler revoking its
+timed shares. A normal run opens these for the one exam it works on and waits for the scheduler to finish. The daemon
+(and a manifest run) keeps one per exam for as long as it runs, so several exams' timers run side by side and later
+commands (a makeup student, say) add to them rather than starting over. Revocations run in the urgent lane.
+ */
+
+package examgenerator;
+
+import com.google.api.services.drive.Drive;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+public class ExamState {
+    private final String examFolderId;
+    private final ShareJournal journal;
+    private final PermissionLedger ledger;
+    private final UnshareScheduler scheduler;
+    // Set by each command, so revocations use the newest index and batch size.
+    private volatile StudentExamIndex studentExams;
+    private volatile int batchSize = Utils.MAX_BATCH_SIZE;
+    private volatile String folderName;
+    private boolean resumed;
+
+    private ExamState(String examFolderId, Drive driveService) throws IOException {
+        this.examFolderId = examFolderId;
+        journal = ShareJournal.open(examFolderId);
+        ledger = PermissionLedger.open(examFolderId);
+        // Only the revoked are marked done, so anyone Drive refused is still in the journal for the next run.
+        scheduler = new UnshareScheduler((doneNow, rejected) -> {
+            Lane previous = Lane.enter(Lane.Priority.URGENT);
+            try {
+                Set<Student> revoked = ExamGenerator.unshareExamsWithStudents(doneNow, studentExams, ledger, batchSize, driveService, rejected);
+                journal.done(revoked);
+                return revoked;
+            } finally {
+                Lane.restore(previous);
+            }
+        });
+    }
+
+    /**
+     * @return the exam's state from the given map, opening it and adding it to the map if it isn't there yet.
+     */
+    public static ExamState open(Map<String, ExamState> exams, String examFolderId, Drive driveService) throws IOException {
+        synchronized (exams) {
+            ExamState state = exams.get(examFolderId);
+            if (state == null) {
+                state = new ExamState(examFolderId, driveService);
+                exams.put(examFolderId, state);
+            }
+            return state;
+        }
+    }
+
+    /**
+     * The first time it's called, schedules the unfinished deadlines from the journal (revoking any already past due
+     * right away) and starts the scheduler.
+     */
+    public synchronized void resume(Roster roster) {
+        if (resumed)
+            return;
+        resumed = true;
+        Map<String, Long> unfinished = journal.getOutstanding();
+        if (!unfinished.isEmpty()) {
+            long now = System.currentTimeMillis();
+            int pastDue = 0;
+            for (Map.Entry<String, Long> e : unfinished.entrySet()) {
+                Student s = roster.getById(e.getKey());
+                if (s == null) {
+                    System.err.println("Journaled student " + e.getKey() + " is no longer in the ClassList. Unshare them by hand.");
+                    continue;
+                }
+                if (e.getValue() <= now)
+                    pastDue++;
+                scheduler.schedule(s, e.getValue());
+            }
+            System.out.printf("Resuming %d unfinished timed shares from the journal, %d already past due.\n", unfinished.size(), pastDue);
+        }
+        scheduler.start();
+    }
+
+    public String getExamFolderId() {
+        return examFolderId;
+    }
+
+    public String getFolderName() {
+        return folderName;
+    }
+
+    public void setFolderName(String folderName) {
+        this.folderName = folderName;
+    }
+
+    public ShareJournal getJournal() {
+        return journal;
+    }
+
+    public PermissionLedger getLedger() {
+        return ledger;
+    }
+
+    public UnshareScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public StudentExamIndex getStudentExams() {
+        return studentExams;
+    }
+
+    public void setStudentExams(StudentExamIndex studentExams) {
+        this.studentExams = studentExams;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+}
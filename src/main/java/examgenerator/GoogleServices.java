@@ -0,0 +1,86 @@
+/*
+The Google API clients a command works with, all on one transport and one credential. The credential is only loaded,
+and each client only built, the first time something asks for it: an unshare never builds the Docs or Sheets clients,
+and printing the help doesn't load the credential at all. Sharing one credential also means an expired access token is
+refreshed once for the run rather than once per client.
+
+The transport can be swapped for a pooled one (see PooledTransport) up until the credential is first asked for.
+ */
+
+package examgenerator;
+
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.docs.v1.Docs;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.sheets.v4.Sheets;
+
+import java.io.IOException;
+
+public class GoogleServices {
+    private static final String APPLICATION_NAME = "Exam Generator";
+    private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+
+    private HttpTransport transport;
+    private PooledTransport pool;
+    private final ExamGenerator.CredentialSource credentials;
+    private HttpRequestInitializer credential;
+    private Drive drive;
+    private Docs docs;
+    private Sheets sheets;
+
+    public GoogleServices(HttpTransport transport, ExamGenerator.CredentialSource credentials) {
+        this.transport = transport;
+        this.credentials = credentials;
+    }
+
+    /**
+     * Sends everything through the pool from now on. Only possible before anything has used the transport.
+     */
+    public synchronized void usePool(PooledTransport pool) {
+        if (credential != null)
+            throw new IllegalStateException("The transport is already in use.");
+        this.pool = pool;
+        transport = pool.getTransport();
+    }
+
+    /**
+     * Closes the pool's connections, if there is one.
+     */
+    public synchronized void shutdown() throws IOException {
+        if (pool != null)
+            pool.shutdown();
+    }
+
+    private synchronized HttpRequestInitializer getCredential() throws IOException {
+        if (credential == null)
+            credential = credentials.get(transport);
+        return credential;
+    }
+
+    public synchronized Drive getDrive() throws IOException {
+        if (drive == null)
+            drive = new Drive.Builder(transport, JSON_FACTORY, getCredential())
+                    .setApplicationName(APPLICATION_NAME)
+                    .build();
+        return drive;
+    }
+
+    public synchronized Docs getDocs() throws IOException {
+        if (docs == null)
+            docs = new Docs.Builder(transport, JSON_FACTORY, getCredential())
+                    .setApplicationName(APPLICATION_NAME)
+                    .build();
+        return docs;
+    }
+
+    public synchronized Sheets getSheets() throws IOException {
+        if (sheets == null)
+            sheets = new Sheets.Builder(transport, JSON_FACTORY, getCredential())
+                    .setApplicationName(APPLICATION_NAME)
+                    .build();
+        return sheets;
+    }
+}
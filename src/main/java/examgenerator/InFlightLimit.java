@@ -0,0 +1,77 @@
+/*
+Caps how many Google API requests are outstanding at once, across every thread. A call takes its slot after its rate
+limiter tokens, so when the cap is full, calls which already hold tokens queue here. They're served in the same order
+as the rate limiter, by the priority of their lane (see Lane) and then in the order they arrived, so an urgent call
+waits for the next slot to free up rather than behind every bulk call already holding tokens.
+ */
+
+package examgenerator;
+
+import java.util.PriorityQueue;
+
+public class InFlightLimit {
+    private final int max;
+    private int used;
+
+    private final PriorityQueue<Ticket> waiting = new PriorityQueue<>();
+    private long arrivals;
+
+    /**
+     * A caller waiting for a slot.
+     */
+    private static final class Ticket implements Comparable<Ticket> {
+        private final Lane.Priority priority;
+        private final long arrival;
+
+        Ticket(Lane.Priority priority, long arrival) {
+            this.priority = priority;
+            this.arrival = arrival;
+        }
+
+        @Override
+        public int compareTo(Ticket o) {
+            if (priority != o.priority)
+                return priority.compareTo(o.priority);
+            return Long.compare(arrival, o.arrival);
+        }
+    }
+
+    public InFlightLimit(int max) {
+        this.max = max;
+    }
+
+    /**
+     * Blocks until it's this caller's turn and a slot is free, and takes it. Like a request already on the wire, a
+     * caller waiting here isn't stopped by an interrupt, which is left set for it to handle afterwards.
+     */
+    public synchronized void acquire() {
+        Ticket ticket = new Ticket(Lane.current().getPriority(), arrivals++);
+        waiting.add(ticket);
+        boolean interrupted = false;
+        try {
+            while (waiting.peek() != ticket || used >= max) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            used++;
+        } finally {
+            waiting.remove(ticket);
+            // The next in line checks for itself whether there's a slot.
+            notifyAll();
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    public synchronized void release() {
+        used--;
+        notifyAll();
+    }
+
+    public int getMax() {
+        return max;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+The append-only log under ShareJournal and PermissionLedger. Each holds what's live in memory, and the log records
+every change to it, one tab-separated entry per line, forced to disk before the change returns. Opening the log replays
+it and then compacts it, rewriting it atomically with only what's still live. It's compacted again once enough dead
+entries pile up.
+
+An entry only counts once its newline is on disk. A crash mid-write can leave a final line cut short, which may still
+parse (a deadline missing its last digits is still a number, just a much earlier one), so whatever follows the last
+newline is dropped rather than applied.
+ */
+
+package examgenerator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+final class JournalFile {
+    private static final String JOURNAL_DIRECTORY_PATH = "journal";
+    private static final int COMPACT_THRESHOLD = 1000;
+
+    /**
+     * What a log records.
+     */
+    interface State {
+        /**
+         * Applies an entry read back from the log, already split at tabs.
+         * @return whether the entry was well-formed.
+         */
+        boolean apply(String[] entry);
+
+        /**
+         * Writes an entry for everything live, which is all a compacted log holds.
+         * @return how many entries were written.
+         */
+        int write(StringBuilder sb);
+
+        /**
+         * @return how many entries a compacted log would hold.
+         */
+        int size();
+    }
+
+    private final Path file;
+    private final State state;
+    private FileChannel channel;
+    private int entries;
+
+    private JournalFile(Path file, State state) {
+        this.file = file;
+        this.state = state;
+    }
+
+    static Path path(String name) {
+        return Paths.get(JOURNAL_DIRECTORY_PATH, name);
+    }
+
+    /**
+     * Replays the log into the state, then compacts it and opens it for appending.
+     */
+    static JournalFile open(Path file, State state) throws IOException {
+        replay(file, state);
+        JournalFile journal = new JournalFile(file, state);
+        journal.compact();
+        return journal;
+    }
+
+    /**
+     * Replays the log into the state without opening it for writing. A final entry without its newline is dropped.
+     */
+    static void replay(Path file, State state) throws IOException {
+        if (!Files.exists(file))
+            return;
+        String log = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        int end = log.lastIndexOf('\n') + 1;
+        if (end < log.length())
+            System.err.println("Dropping an unfinished entry at the end of " + file + ": " + log.substring(end));
+        for (String line : log.substring(0, end).split("\n")) {
+            if (!line.isEmpty() && !state.apply(line.split("\t")))
+                System.err.println("Skipping malformed entry in " + file + ": " + line);
+        }
+    }
+
+    /**
+     * Rewrites the log with only what's live, replacing the old file atomically.
+     */
+    private void compact() throws IOException {
+        if (channel != null)
+            channel.close();
+        Files.createDirectories(file.getParent());
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            StringBuilder sb = new StringBuilder();
+            entries = state.write(sb);
+            write(out, sb);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static void write(FileChannel out, CharSequence entries) throws IOException {
+        ByteBuffer buffer = StandardCharsets.UTF_8.encode(entries.toString());
+        while (buffer.hasRemaining())
+            out.write(buffer);
+        out.force(false);
+    }
+
+    /**
+     * Appends the entries, count of them, forcing them to disk. Callers synchronize, as they update their state too.
+     */
+    void append(CharSequence sb, int count) throws IOException {
+        write(channel, sb);
+        entries += count;
+        if (entries > COMPACT_THRESHOLD && entries > 2 * state.size())
+            compact();
+    }
+}
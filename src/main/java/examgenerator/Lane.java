@@ -0,0 +1,91 @@
+/*
+Which exam a thread's Google API calls are for, and how urgent they are. The rate limiter and the cap on requests in
+flight both serve waiting calls by priority first: revoking access comes before everything else, and generating comes
+after everything else, so a timed unshare is never stuck behind another exam's bulk generation. Between exams at the
+same priority the rate limiter takes turns, so an exam making many calls can't crowd out one making a few.
+
+A thread's lane is inherited by the threads it starts (its worker pools, a scheduler), so setting it once where a
+command starts, and again around each operation, covers every call that operation makes. Each lane also counts its
+calls and its time spent waiting on the rate limiter, for the progress of a manifest run.
+ */
+
+package examgenerator;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public final class Lane {
+    /**
+     * In the order calls are served.
+     */
+    public enum Priority { URGENT, NORMAL, BULK }
+
+    private static final InheritableThreadLocal<Lane> current = new InheritableThreadLocal<>();
+    // Used by threads no command has set a lane for, which is every thread of a single run.
+    private static final Lane DEFAULT = new Lane("", Priority.NORMAL, new LongAdder(), new LongAdder());
+
+    private final String name;
+    private final Priority priority;
+    // Shared by every priority of the same exam.
+    private final LongAdder calls;
+    private final LongAdder waitNanos;
+
+    private Lane(String name, Priority priority, LongAdder calls, LongAdder waitNanos) {
+        this.name = name;
+        this.priority = priority;
+        this.calls = calls;
+        this.waitNanos = waitNanos;
+    }
+
+    /**
+     * Puts this thread, and any it starts from now on, in a new lane for the named exam at normal priority.
+     * @return the new lane.
+     */
+    public static Lane start(String name) {
+        Lane lane = new Lane(name, Priority.NORMAL, new LongAdder(), new LongAdder());
+        current.set(lane);
+        return lane;
+    }
+
+    public static Lane current() {
+        Lane lane = current.get();
+        return lane == null ? DEFAULT : lane;
+    }
+
+    /**
+     * Moves this thread to the given priority in the same exam's lane, until restore is called.
+     * @return the lane to restore afterwards.
+     */
+    public static Lane enter(Priority priority) {
+        Lane previous = current();
+        current.set(new Lane(previous.name, priority, previous.calls, previous.waitNanos));
+        return previous;
+    }
+
+    public static void restore(Lane previous) {
+        current.set(previous);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public void called() {
+        calls.increment();
+    }
+
+    public void waited(long nanos) {
+        waitNanos.add(nanos);
+    }
+
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    public long getWaitNanos() {
+        return waitNanos.sum();
+    }
+}
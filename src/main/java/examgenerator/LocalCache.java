@@ -0,0 +1,71 @@
+/*
+Small JSON files kept in a cache directory beside the tokens directory, used to avoid repeating Drive lookups between
+runs. Anything stored here can be rebuilt from Drive, so a missing or unreadable file is treated as a cache miss.
+ */
+
+package examgenerator;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+public class LocalCache {
+    private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+    private static final String CACHE_DIRECTORY_PATH = "cache";
+
+    public static Path path(String name) {
+        return Paths.get(CACHE_DIRECTORY_PATH, name);
+    }
+
+    /**
+     * @return the names of the cache files matching the glob.
+     */
+    public static List<String> list(String glob) throws IOException {
+        List<String> names = new ArrayList<>();
+        Path directory = Paths.get(CACHE_DIRECTORY_PATH);
+        if (!Files.isDirectory(directory))
+            return names;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, glob)) {
+            for (Path file : files)
+                names.add(file.getFileName().toString());
+        }
+        return names;
+    }
+
+    public static <T> T read(String name, Class<T> type) {
+        Path file = path(name);
+        if (!Files.exists(file))
+            return null;
+        try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return JSON_FACTORY.fromReader(in, type);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Ignoring unreadable cache file " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Writes the value to a temporary file first and then moves it in place, so a crash mid-write never leaves a
+     * truncated cache file behind.
+     */
+    public static void write(String name, Object value) throws IOException {
+        Path file = path(name);
+        Files.createDirectories(file.getParent());
+        Path tmp = Files.createTempFile(file.getParent(), name, ".tmp");
+        try (Writer out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            out.write(JSON_FACTORY.toPrettyString(value));
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
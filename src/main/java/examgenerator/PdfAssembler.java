@@ -0,0 +1,186 @@
+/*
+Builds each student's exam as a single PDF, put together locally rather than out of copies made on Drive. Every
+variant is exported to PDF once (or downloaded, if it's a PDF already) into the cache directory, keyed by its ID and
+when it was last modified, so later runs and other sections of the same course reuse the exports until a variant is
+edited. A student's exam is their variants' PDFs concatenated in order, then uploaded to their folder in one request.
+
+Concatenating is CPU bound, so no more merges run at once than there are cores, however many workers there are. Each
+merge keeps a bounded amount in memory and spills the rest to temporary files, so large exams don't need a large heap.
+ */
+
+package examgenerator;
+
+import com.google.api.client.http.FileContent;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.multipdf.PDFMergerUtility;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class PdfAssembler {
+    private static final String PDF_MIME_TYPE = "application/pdf";
+    private static final String GOOGLE_APPS_MIME_TYPE = "application/vnd.google-apps.";
+    private static final String CACHE_NAME = "pdf";
+    // The most each merge keeps in memory before spilling to temporary files.
+    private static final long MERGE_MEMORY_BYTES = 16L << 20;
+
+    private final Drive driveService;
+    private final Path cacheDirectory = LocalCache.path(CACHE_NAME);
+    private final Map<String, Path> exports = new ConcurrentHashMap<>();
+    private final Semaphore merges = new Semaphore(Runtime.getRuntime().availableProcessors());
+
+    public PdfAssembler(Drive driveService) {
+        this.driveService = driveService;
+    }
+
+    /**
+     * @return the name of the student's exam PDF.
+     */
+    public static String fileName(Student student) {
+        return student.toString() + ".pdf";
+    }
+
+    /**
+     * Exports every variant of the exam which isn't already cached, up to parallelism at a time. Each variant's
+     * modified time is looked up first (in Drive batches) to tell whether its cached export is still current.
+     */
+    public void load(Exam exam, int parallelism) throws IOException {
+        List<Question.QuestionVariant> variants = variants(exam);
+        Map<Question.QuestionVariant, File> metadata = metadata(variants, parallelism);
+        Files.createDirectories(cacheDirectory);
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, parallelism));
+        try {
+            List<Future<Void>> downloads = new ArrayList<>();
+            for (Question.QuestionVariant qv : variants) {
+                File file = metadata.get(qv);
+                if (file == null)
+                    throw new IOException("Couldn't look up variant " + qv.getName() + ".");
+                Path export = exportPath(qv, file);
+                exports.put(qv.getId(), export);
+                if (!Files.exists(export))
+                    downloads.add(pool.submit(() -> download(qv, file, export)));
+            }
+            for (Future<Void> download : downloads) {
+                try {
+                    download.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while exporting variants.", e);
+                }
+            }
+            System.out.printf("Exported %d variants to PDF, %d were already cached.\n", downloads.size(), variants.size() - downloads.size());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static List<Question.QuestionVariant> variants(Exam exam) {
+        List<Question.QuestionVariant> variants = new ArrayList<>();
+        for (Question q : exam.getQuestions())
+            variants.addAll(q.getVariants());
+        return variants;
+    }
+
+    /**
+     * Looks up each variant's type and modified time, in Drive batches.
+     */
+    private Map<Question.QuestionVariant, File> metadata(List<Question.QuestionVariant> variants, int parallelism) throws IOException {
+        return Utils.executeInBatches(driveService, variants, Utils.MAX_BATCH_SIZE, parallelism,
+                qv -> driveService.files().get(qv.getId()).setFields("id, mimeType, modifiedTime"));
+    }
+
+    /**
+     * @return where the export of the variant as it is now is cached. An older export has a different name.
+     */
+    private Path exportPath(Question.QuestionVariant qv, File file) {
+        return cacheDirectory.resolve(qv.getId() + "-" + file.getModifiedTime().getValue() + ".pdf");
+    }
+
+    /**
+     * @return how many of the exam's variants have a current export in the cache, checked against each variant's
+     * modified time as load does, but without exporting anything.
+     */
+    public int currentExports(Exam exam, int parallelism) throws IOException {
+        List<Question.QuestionVariant> variants = variants(exam);
+        Map<Question.QuestionVariant, File> metadata = metadata(variants, parallelism);
+        int current = 0;
+        for (Question.QuestionVariant qv : variants) {
+            File file = metadata.get(qv);
+            if (file != null && Files.exists(exportPath(qv, file)))
+                current++;
+        }
+        return current;
+    }
+
+    /**
+     * Saves the variant as a PDF at the given path, replacing any export of an older version of it.
+     */
+    private Void download(Question.QuestionVariant qv, File file, Path export) throws IOException {
+        Path tmp = Files.createTempFile(cacheDirectory, qv.getId(), ".tmp");
+        try {
+            if (PDF_MIME_TYPE.equals(file.getMimeType()))
+                Utils.downloadWithBackoff(driveService.files().get(qv.getId()), tmp);
+            else if (file.getMimeType().startsWith(GOOGLE_APPS_MIME_TYPE))
+                Utils.downloadWithBackoff(driveService.files().export(qv.getId(), PDF_MIME_TYPE), tmp);
+            else
+                throw new IOException("Variant " + qv.getName() + " is a " + file.getMimeType() + " file, which can't be turned into a PDF.");
+            try (DirectoryStream<Path> older = Files.newDirectoryStream(cacheDirectory, qv.getId() + "-*.pdf")) {
+                for (Path old : older)
+                    Files.deleteIfExists(old);
+            }
+            Files.move(tmp, export, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return null;
+    }
+
+    /**
+     * Concatenates the student's variants and uploads the result into their folder. The upload is a single request,
+     * so the PDF only ever appears in the folder complete.
+     * @return the PDF's ID.
+     */
+    public String buildStudentPdf(Student student, List<Question.QuestionVariant> variants, String folderId) throws IOException {
+        Path merged = Files.createTempFile("exam-", ".pdf");
+        try {
+            merges.acquireUninterruptibly();
+            try {
+                PDFMergerUtility merger = new PDFMergerUtility();
+                for (Question.QuestionVariant qv : variants) {
+                    Path export = exports.get(qv.getId());
+                    if (export == null)
+                        throw new IOException("Variant " + qv.getName() + " hasn't been exported.");
+                    merger.addSource(export.toFile());
+                }
+                merger.setDestinationFileName(merged.toString());
+                merger.mergeDocuments(MemoryUsageSetting.setupMixed(MERGE_MEMORY_BYTES));
+            } finally {
+                merges.release();
+            }
+
+            File metadata = new File()
+                    .setName(fileName(student))
+                    .setMimeType(PDF_MIME_TYPE)
+                    .setParents(Collections.singletonList(folderId));
+            return Utils.uploadWithBackoff(() -> {
+                Drive.Files.Create create = driveService.files().create(metadata, new FileContent(PDF_MIME_TYPE, merged.toFile()))
+                        .setFields("id");
+                // A multipart upload rather than a resumable one, which would take a second request to start.
+                create.getMediaHttpUploader().setDirectUploadEnabled(true);
+                return create;
+            }).getId();
+        } finally {
+            Files.deleteIfExists(merged);
+        }
+    }
+}
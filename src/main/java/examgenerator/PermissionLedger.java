@@ -0,0 +1,107 @@
+/*
+An append-only ledger of the permissions sharing has granted on each student's exam folder, so unsharing can delete
+them by ID instead of listing every folder's permissions first. Each grant is written with the folder it's on and the
+permission ID Drive returned, and each student is marked revoked once their permission is gone. Every write is forced
+to disk before returning, and the ledger is compacted down to the live grants whenever it's opened, and again once
+enough revoked entries pile up (see JournalFile).
+
+The ledger is only a shortcut. Anything it doesn't know about (a grant made by hand, or by a run which died before
+recording it), or whose recorded permission turns out to be gone, is found by listing permissions as before.
+
+Format, one tab-separated entry per line:
+GRANT    <student id>   <exam folder id>   <permission id>
+REVOKE   <student id>
+ */
+
+package examgenerator;
+
+import com.google.api.services.drive.model.Permission;
+
+import java.io.IOException;
+import java.util.*;
+
+public class PermissionLedger {
+    // The exam folder ID and permission ID of each student's live grant, keyed by student ID.
+    private final Map<String, String[]> grants = new LinkedHashMap<>();
+    private final JournalFile.State state = new JournalFile.State() {
+        @Override
+        public boolean apply(String[] entry) {
+            if (entry.length == 4 && entry[0].equals("GRANT")) {
+                grants.put(entry[1], new String[]{entry[2], entry[3]});
+                return true;
+            } else if (entry.length == 2 && entry[0].equals("REVOKE")) {
+                grants.remove(entry[1]);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public int write(StringBuilder sb) {
+            grants.forEach((id, grant) -> grant(sb, id, grant));
+            return grants.size();
+        }
+
+        @Override
+        public int size() {
+            return grants.size();
+        }
+    };
+    private JournalFile file;
+
+    private PermissionLedger() {
+    }
+
+    /**
+     * Opens the ledger for the exam, replaying and compacting whatever earlier runs left behind.
+     */
+    public static PermissionLedger open(String examFolderId) throws IOException {
+        PermissionLedger ledger = new PermissionLedger();
+        ledger.file = JournalFile.open(JournalFile.path("permissions-" + examFolderId + ".log"), ledger.state);
+        return ledger;
+    }
+
+    private static void grant(StringBuilder sb, String studentId, String[] grant) {
+        sb.append("GRANT\t").append(studentId).append('\t').append(grant[0]).append('\t').append(grant[1]).append('\n');
+    }
+
+    /**
+     * Records the permission each student was granted on their exam folder.
+     */
+    public synchronized void granted(Map<Student, Permission> permissions, Map<Student, String> examIds) throws IOException {
+        if (permissions.isEmpty())
+            return;
+        StringBuilder sb = new StringBuilder();
+        permissions.forEach((s, permission) -> {
+            String[] grant = {examIds.get(s), permission.getId()};
+            grant(sb, s.getId(), grant);
+            grants.put(s.getId(), grant);
+        });
+        file.append(sb, permissions.size());
+    }
+
+    /**
+     * Records that the students no longer have access.
+     */
+    public synchronized void revoked(Collection<Student> students) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int count = 0;
+        for (Student s : students) {
+            if (grants.remove(s.getId()) != null) {
+                sb.append("REVOKE\t").append(s.getId()).append('\n');
+                count++;
+            }
+        }
+        if (count > 0)
+            file.append(sb, count);
+    }
+
+    /**
+     * @return the ID of the permission the student was granted on the given exam folder, or null if the ledger has
+     * none (or only one on a different folder, which is out of date).
+     */
+    public synchronized String getPermissionId(Student s, String examId) {
+        String[] grant = grants.get(s.getId());
+        return grant != null && grant[0].equals(examId) ? grant[1] : null;
+    }
+}
@@ -0,0 +1,217 @@
+/*
+An HTTP transport for the Google clients built on a pool of kept-alive connections (Apache HttpClient), for runs with
+many requests in flight. The default transport opens connections through HttpURLConnection, which keeps only a few idle
+connections per host, so a run with more requests in flight than that keeps paying for new TLS handshakes. Here each
+host (Drive, Docs, Sheets and the OAuth endpoint are separate hosts) gets its own limit, connections idle too long are
+closed, and ones idle for a moment are checked before reuse rather than failing a request.
+
+Responses are still gzipped, as with the default transport: the client library asks for gzip and decodes it itself, so
+the pool is kept from doing either. The pool counts requests, new connections, gzipped responses and time spent waiting
+for a free connection, which are reported with the API metrics.
+ */
+
+package examgenerator;
+
+import com.google.api.client.googleapis.GoogleUtils;
+import com.google.api.client.http.apache.v2.ApacheHttpTransport;
+import com.google.api.client.util.SslUtils;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.conn.SystemDefaultRoutePlanner;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.ProxySelector;
+import java.security.GeneralSecurityException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+public class PooledTransport {
+    // Connections idle this long are closed. Google's front ends drop idle connections after a few minutes anyway.
+    private static final long MAX_IDLE_SECONDS = 60;
+    // Connections idle for longer than this are checked before being reused.
+    private static final int VALIDATE_AFTER_INACTIVITY_MILLIS = 2000;
+    // Drive, Docs, Sheets and OAuth.
+    private static final int HOSTS = 4;
+
+    private final Pool pool;
+    private final ApacheHttpTransport transport;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder gzipped = new LongAdder();
+    private final LongAdder leaseWaitNanos = new LongAdder();
+    private final AtomicInteger peakLeased = new AtomicInteger();
+
+    /**
+     * Counts the connections it opens and how long callers wait to lease one.
+     */
+    private final class Pool extends PoolingHttpClientConnectionManager {
+        Pool(Registry<ConnectionSocketFactory> registry) {
+            super(registry);
+        }
+
+        @Override
+        public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+            ConnectionRequest request = super.requestConnection(route, state);
+            return new ConnectionRequest() {
+                @Override
+                public HttpClientConnection get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                    long start = System.nanoTime();
+                    try {
+                        return request.get(timeout, unit);
+                    } finally {
+                        leaseWaitNanos.add(System.nanoTime() - start);
+                        peakLeased.accumulateAndGet(getTotalStats().getLeased(), Math::max);
+                    }
+                }
+
+                @Override
+                public boolean cancel() {
+                    return request.cancel();
+                }
+            };
+        }
+
+        @Override
+        public void connect(HttpClientConnection connection, HttpRoute route, int connectTimeout, HttpContext context) throws IOException {
+            // Only called for a connection which isn't open yet.
+            super.connect(connection, route, connectTimeout, context);
+            opened.increment();
+        }
+    }
+
+    /**
+     * @param connectionsPerHost how many connections to keep to each host.
+     * @param hostLimits the limit for particular hosts (e.g. sheets.googleapis.com), overriding connectionsPerHost.
+     */
+    public PooledTransport(int connectionsPerHost, Map<String, Integer> hostLimits) throws IOException {
+        SSLContext ssl;
+        try {
+            // Trusting the same certificates as the default transport.
+            ssl = SslUtils.initSslContext(SslUtils.getTlsSslContext(), GoogleUtils.getCertificateTrustStore(), SslUtils.getPkixTrustManagerFactory());
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Couldn't set up TLS for the pooled transport.", e);
+        }
+        pool = new Pool(RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", new SSLConnectionSocketFactory(ssl))
+                .build());
+        pool.setDefaultMaxPerRoute(connectionsPerHost);
+        int total = connectionsPerHost * HOSTS;
+        for (Map.Entry<String, Integer> limit : hostLimits.entrySet()) {
+            pool.setMaxPerRoute(new HttpRoute(new HttpHost(limit.getKey(), 443, "https"), null, true), limit.getValue());
+            total += limit.getValue();
+        }
+        // Every host can use its whole allowance at once; --max-in-flight is what bounds the total.
+        pool.setMaxTotal(total);
+        pool.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MILLIS);
+
+        transport = new ApacheHttpTransport(HttpClientBuilder.create()
+                .useSystemProperties()
+                .setConnectionManager(pool)
+                .setRoutePlanner(new SystemDefaultRoutePlanner(ProxySelector.getDefault()))
+                .evictIdleConnections(MAX_IDLE_SECONDS, TimeUnit.SECONDS)
+                // The client library handles gzip, redirects and retries itself.
+                .disableContentCompression()
+                .disableRedirectHandling()
+                .disableAutomaticRetries()
+                .addInterceptorLast((HttpRequestInterceptor) (request, context) -> requests.increment())
+                .addInterceptorLast((HttpResponseInterceptor) (response, context) -> {
+                    if (response.getEntity() != null && response.getEntity().getContentEncoding() != null
+                            && response.getEntity().getContentEncoding().getValue().contains("gzip"))
+                        gzipped.increment();
+                })
+                .build());
+    }
+
+    public ApacheHttpTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Closes every connection.
+     */
+    public void shutdown() throws IOException {
+        transport.shutdown();
+    }
+
+    /**
+     * @return the pool's current state for each host it has connected to.
+     */
+    private Map<String, PoolStats> hostStats() {
+        Map<String, PoolStats> stats = new TreeMap<>();
+        for (HttpRoute route : pool.getRoutes())
+            stats.put(route.getTargetHost().getHostName(), pool.getStats(route));
+        return stats;
+    }
+
+    /**
+     * Prints how well connections were reused, and how each host's connections stand now.
+     */
+    public void printSummary(PrintStream out) {
+        long n = requests.sum(), connections = opened.sum();
+        out.printf("Connection pool: %d requests over %d connections (%.1f%% reused), %d responses gzipped. Peak %d connections leased; waited %.1f s in total for a free one.\n",
+                n, connections, n == 0 ? 0.0 : 100.0 * (n - Math.min(n, connections)) / n, gzipped.sum(), peakLeased.get(), leaseWaitNanos.sum() / 1e9);
+        hostStats().forEach((host, stats) -> out.printf("  %-38s %d leased, %d idle, %d waiting, at most %d\n",
+                host, stats.getLeased(), stats.getAvailable(), stats.getPending(), stats.getMax()));
+    }
+
+    public Map<String, Object> toJson() {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("requests", requests.sum());
+        json.put("connectionsOpened", opened.sum());
+        json.put("gzippedResponses", gzipped.sum());
+        json.put("peakLeased", peakLeased.get());
+        json.put("leaseWaitSeconds", leaseWaitNanos.sum() / 1e9);
+        Map<String, Object> hosts = new LinkedHashMap<>();
+        hostStats().forEach((host, stats) -> {
+            Map<String, Object> h = new LinkedHashMap<>();
+            h.put("leased", stats.getLeased());
+            h.put("idle", stats.getAvailable());
+            h.put("waiting", stats.getPending());
+            h.put("max", stats.getMax());
+            hosts.put(host, h);
+        });
+        json.put("hosts", hosts);
+        return json;
+    }
+
+    public void appendPrometheus(StringBuilder out) {
+        out.append("# HELP examgenerator_http_requests_total HTTP requests sent through the connection pool.\n");
+        out.append("# TYPE examgenerator_http_requests_total counter\n");
+        out.append("examgenerator_http_requests_total ").append(requests.sum()).append('\n');
+        out.append("# HELP examgenerator_http_connections_opened_total Connections the pool opened.\n");
+        out.append("# TYPE examgenerator_http_connections_opened_total counter\n");
+        out.append("examgenerator_http_connections_opened_total ").append(opened.sum()).append('\n');
+        out.append("# HELP examgenerator_http_gzipped_responses_total Responses which came back gzipped.\n");
+        out.append("# TYPE examgenerator_http_gzipped_responses_total counter\n");
+        out.append("examgenerator_http_gzipped_responses_total ").append(gzipped.sum()).append('\n');
+        out.append("# HELP examgenerator_http_lease_wait_seconds_total Time spent waiting for a free connection.\n");
+        out.append("# TYPE examgenerator_http_lease_wait_seconds_total counter\n");
+        out.append("examgenerator_http_lease_wait_seconds_total ").append(leaseWaitNanos.sum() / 1e9).append('\n');
+        out.append("# HELP examgenerator_http_connections Connections to each host by state.\n");
+        out.append("# TYPE examgenerator_http_connections gauge\n");
+        hostStats().forEach((host, stats) -> {
+            out.append("examgenerator_http_connections{host=\"").append(host).append("\",state=\"leased\"} ").append(stats.getLeased()).append('\n');
+            out.append("examgenerator_http_connections{host=\"").append(host).append("\",state=\"idle\"} ").append(stats.getAvailable()).append('\n');
+        });
+    }
+}
@@ -1,3 +1,5 @@
+package examgenerator;
+
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ThreadLocalRandom;
@@ -13,6 +15,18 @@ public class Question {
         variants.add(new QuestionVariant(name, id));
     }
 
+    public List<QuestionVariant> getVariants(){
+        return variants;
+    }
+
+    public QuestionVariant findVariant(String name){
+        for (QuestionVariant qv : variants) {
+            if (qv.getName().equals(name))
+                return qv;
+        }
+        return null;
+    }
+
     public QuestionVariant pickVariant(){
         int val = ThreadLocalRandom.current().nextInt(0, variants.size());
         return variants.get(val);
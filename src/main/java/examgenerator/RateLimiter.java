@@ -0,0 +1,143 @@
+/*
+A token bucket shared by every thread making Google API calls. Tokens refill continuously at the current rate, up to one
+second's worth, and each API call (including each call inside a batch) takes one.
+
+The rate adapts to what Google tells us: when a call is throttled the rate is halved and every caller is held back
+for the backoff period, and each successful call nudges the rate back up towards the configured maximum.
+
+Callers waiting for tokens are served one at a time by the priority of their lane (see Lane), and between lanes of the
+same priority by start-time fair queuing: each call is tagged with where its lane's previous calls left off, so lanes
+take turns in proportion to the tokens they use rather than in the order their threads happened to arrive.
+ */
+
+package examgenerator;
+
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+public class RateLimiter {
+    private static final double MIN_RATE = 1.0;
+
+    private final double maxRate;
+    private double rate;
+    private double tokens;
+    private long lastRefill;
+    private long pausedUntil;
+
+    private final PriorityQueue<Ticket> waiting = new PriorityQueue<>();
+    // Where each lane's calls so far would finish, and where the call served last started, in tokens.
+    private final Map<String, Double> laneFinish = new HashMap<>();
+    private double virtualTime;
+    private long arrivals;
+
+    /**
+     * A caller waiting for tokens.
+     */
+    private static final class Ticket implements Comparable<Ticket> {
+        private final Lane.Priority priority;
+        private final double start;
+        private final long arrival;
+
+        Ticket(Lane.Priority priority, double start, long arrival) {
+            this.priority = priority;
+            this.start = start;
+            this.arrival = arrival;
+        }
+
+        @Override
+        public int compareTo(Ticket o) {
+            if (priority != o.priority)
+                return priority.compareTo(o.priority);
+            if (start != o.start)
+                return Double.compare(start, o.start);
+            return Long.compare(arrival, o.arrival);
+        }
+    }
+
+    public RateLimiter(double requestsPerSecond) {
+        this.maxRate = requestsPerSecond;
+        this.rate = requestsPerSecond;
+        this.tokens = requestsPerSecond;
+        this.lastRefill = System.nanoTime();
+        this.pausedUntil = lastRefill;
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(rate, tokens + (now - lastRefill) * rate / 1e9);
+        lastRefill = now;
+    }
+
+    /**
+     * Blocks until it's this caller's turn and permits tokens are available, and takes them. Requests for more than a
+     * full bucket wait for a full bucket and go into debt, which later callers wait out. An interrupted caller gets
+     * no tokens, and so mustn't make its call.
+     */
+    public synchronized void acquire(int permits) throws InterruptedIOException {
+        Lane lane = Lane.current();
+        double start = Math.max(virtualTime, laneFinish.getOrDefault(lane.getName(), 0.0));
+        laneFinish.put(lane.getName(), start + permits);
+        Ticket ticket = new Ticket(lane.getPriority(), start, arrivals++);
+        waiting.add(ticket);
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                refill(now);
+                if (waiting.peek() != ticket) {
+                    wait();
+                    continue;
+                }
+                double needed = Math.min(permits, rate);
+                long wait = Math.max(pausedUntil - now, tokens < needed ? (long) Math.ceil((needed - tokens) / rate * 1e9) : 0);
+                if (wait <= 0) {
+                    tokens -= permits;
+                    virtualTime = start;
+                    return;
+                }
+                wait(wait / 1_000_000, (int) (wait % 1_000_000));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the rate limit.");
+        } finally {
+            waiting.remove(ticket);
+            // The next in line works out its own wait.
+            notifyAll();
+        }
+    }
+
+    /**
+     * Takes permits tokens without waiting, going into debt if there aren't enough, for a burst which has to go out
+     * right away. Later callers wait the debt out.
+     */
+    public synchronized void borrow(int permits) {
+        refill(System.nanoTime());
+        tokens -= permits;
+    }
+
+    /**
+     * Called when Google reports we're over quota. Halves the rate and holds everyone back for the given time.
+     */
+    public synchronized void throttled(long backoffMillis) {
+        rate = Math.max(MIN_RATE, rate / 2);
+        tokens = Math.min(tokens, rate);
+        pausedUntil = Math.max(pausedUntil, System.nanoTime() + backoffMillis * 1_000_000);
+    }
+
+    /**
+     * Called after each successful call to slowly recover the rate after being throttled.
+     */
+    public synchronized void succeeded() {
+        if (rate < maxRate)
+            rate = Math.min(maxRate, rate + 0.1);
+    }
+
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    public double getMaxRate() {
+        return maxRate;
+    }
+}
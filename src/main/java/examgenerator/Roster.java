@@ -0,0 +1,148 @@
+/*
+The class roster, read from every tab of every ClassList spreadsheet (one per section, say). Each tab is read a chunk
+of rows at a time rather than as one fixed range, and rows which can't be turned into a Student are skipped and
+reported rather than stopping the run. Students are indexed by ID and by email.
+ */
+
+package examgenerator;
+
+import com.google.api.services.sheets.v4.Sheets;
+import com.google.api.services.sheets.v4.model.Sheet;
+import com.google.api.services.sheets.v4.model.Spreadsheet;
+import com.google.api.services.sheets.v4.model.ValueRange;
+
+import java.io.IOException;
+import java.util.*;
+
+public class Roster {
+    private static final int ROWS_PER_CHUNK = 1000;
+
+    // Columns of the ClassList, as Banner exports it.
+    private static final int ID = 0, LAST_NAME = 1, FIRST_NAME = 2, EMAIL = 7, OVERRIDE_TIME = 11;
+
+    private final Map<String, Student> byId = new LinkedHashMap<>();
+    private final Map<String, Student> byEmail = new HashMap<>();
+    private final List<String> skipped = new ArrayList<>();
+
+    /**
+     * Turns a ClassList row into a Student.
+     * @throws IllegalArgumentException describing what's wrong with the row if it isn't a valid student.
+     */
+    public static Student parseRow(List<Object> row) {
+        if (row.size() <= EMAIL)
+            throw new IllegalArgumentException("only " + row.size() + " columns");
+        String id = cell(row, ID), lastname = cell(row, LAST_NAME), firstname = cell(row, FIRST_NAME), email = cell(row, EMAIL);
+        if (id.isEmpty())
+            throw new IllegalArgumentException("no ID");
+        if (lastname.isEmpty() && firstname.isEmpty())
+            throw new IllegalArgumentException("no name");
+        if (!email.contains("@"))
+            throw new IllegalArgumentException("invalid email '" + email + "'");
+
+        String overrideTime = cell(row, OVERRIDE_TIME);
+        if (overrideTime.isEmpty())
+            overrideTime = null;
+        else if (!overrideTime.matches("\\d+"))
+            throw new IllegalArgumentException("invalid override time '" + overrideTime + "'");
+
+        return new Student(id, lastname, firstname, email, overrideTime);
+    }
+
+    private static String cell(List<Object> row, int column) {
+        return column < row.size() && row.get(column) != null ? row.get(column).toString().trim() : "";
+    }
+
+    private static boolean isBlank(List<Object> row) {
+        return row.stream().allMatch(c -> c == null || c.toString().trim().isEmpty());
+    }
+
+    /**
+     * Reads every tab of each of the given spreadsheets.
+     */
+    public static Roster load(List<String> spreadsheetIds, Sheets sheetsService) throws IOException {
+        Roster roster = new Roster();
+        int tabs = 0;
+        for (String spreadsheetId : spreadsheetIds) {
+            Spreadsheet spreadsheet = Utils.executeWithBackoff(sheetsService.spreadsheets().get(spreadsheetId)
+                    .setFields("sheets.properties.title"));
+            for (Sheet sheet : spreadsheet.getSheets()) {
+                roster.readTab(spreadsheetId, sheet.getProperties().getTitle(), sheetsService);
+                tabs++;
+            }
+        }
+
+        System.out.printf("Loaded %d students from %d tabs of %d ClassLists.\n", roster.byId.size(), tabs, spreadsheetIds.size());
+        if (!roster.skipped.isEmpty()) {
+            System.out.println("Skipped " + roster.skipped.size() + " rows:");
+            roster.skipped.forEach(s -> System.out.println("  " + s));
+        }
+        return roster;
+    }
+
+    private void readTab(String spreadsheetId, String tab, Sheets sheetsService) throws IOException {
+        String quotedTab = "'" + tab.replace("'", "''") + "'";
+        for (int first = 1; ; first += ROWS_PER_CHUNK) {
+            int last = first + ROWS_PER_CHUNK - 1;
+            ValueRange chunk = Utils.executeWithBackoff(sheetsService.spreadsheets().values()
+                    .get(spreadsheetId, quotedTab + "!A" + first + ":L" + last));
+            List<List<Object>> rows = chunk.getValues();
+            if (rows == null)
+                return;
+
+            for (int i = 0; i < rows.size(); i++)
+                add(rows.get(i), tab + " row " + (first + i));
+
+            // Trailing blank rows aren't returned, so a short chunk is the end of the tab.
+            if (rows.size() < ROWS_PER_CHUNK)
+                return;
+        }
+    }
+
+    private void add(List<Object> row, String where) {
+        if (isBlank(row))
+            return;
+        Student s;
+        try {
+            s = parseRow(row);
+        } catch (IllegalArgumentException e) {
+            skipped.add(where + ": " + e.getMessage());
+            return;
+        }
+        if (byId.containsKey(s.getId())) {
+            skipped.add(where + ": duplicate ID " + s.getId());
+            return;
+        }
+        byId.put(s.getId(), s);
+        byEmail.put(s.getEmail().toLowerCase(), s);
+    }
+
+    /**
+     * @return every student, in the order they appear in the ClassLists.
+     */
+    public List<Student> getStudents() {
+        return new ArrayList<>(byId.values());
+    }
+
+    public Student getById(String id) {
+        return byId.get(id);
+    }
+
+    public Student getByEmail(String email) {
+        return byEmail.get(email.toLowerCase());
+    }
+
+    /**
+     * @return the students with the given IDs, reporting any ID which isn't in the roster.
+     */
+    public List<Student> getStudentsById(Collection<String> ids) {
+        List<Student> found = new ArrayList<>();
+        for (String id : ids) {
+            Student s = byId.get(id);
+            if (s == null)
+                System.err.println("No student with ID " + id + " in the ClassList.");
+            else
+                found.add(s);
+        }
+        return found;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+An append-only journal of timed shares for one exam, so that a share outlives the process that started it. Each
+timed share is written with its absolute deadline before the program waits on it, and each student is marked done once
+their access is revoked (or their share no longer has a deadline). Every write is forced to disk before returning.
+
+If the program dies mid-share, the next run against the same exam replays the journal and picks up the deadlines
+that were never finished. The journal is compacted down to just those deadlines whenever it's opened, and again once
+enough finished entries pile up (see JournalFile).
+
+Format, one tab-separated entry per line:
+SHARE   <student id>   <deadline, epoch ms>
+DONE    <student id>
+ */
+
+package examgenerator;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+
+public class ShareJournal {
+    private final Map<String, Long> outstanding = new LinkedHashMap<>();
+    private final JournalFile.State state = new JournalFile.State() {
+        @Override
+        public boolean apply(String[] entry) {
+            if (entry.length == 3 && entry[0].equals("SHARE")) {
+                try {
+                    outstanding.put(entry[1], Long.parseLong(entry[2]));
+                    return true;
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            } else if (entry.length == 2 && entry[0].equals("DONE")) {
+                outstanding.remove(entry[1]);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public int write(StringBuilder sb) {
+            outstanding.forEach((id, deadline) -> share(sb, id, deadline));
+            return outstanding.size();
+        }
+
+        @Override
+        public int size() {
+            return outstanding.size();
+        }
+    };
+    private JournalFile file;
+
+    private ShareJournal() {
+    }
+
+    /**
+     * Opens the journal for the exam, replaying and compacting whatever a previous run left behind.
+     */
+    public static ShareJournal open(String examFolderId) throws IOException {
+        ShareJournal journal = new ShareJournal();
+        journal.file = JournalFile.open(path(examFolderId), journal.state);
+        return journal;
+    }
+
+    /**
+     * @return whether the exam's journal has unfinished timed shares, read without opening the journal for writing.
+     */
+    public static boolean hasOutstanding(String examFolderId) throws IOException {
+        ShareJournal journal = new ShareJournal();
+        JournalFile.replay(path(examFolderId), journal.state);
+        return !journal.outstanding.isEmpty();
+    }
+
+    private static Path path(String examFolderId) {
+        return JournalFile.path("shares-" + examFolderId + ".log");
+    }
+
+    private static void share(StringBuilder sb, String studentId, long deadline) {
+        sb.append("SHARE\t").append(studentId).append('\t').append(deadline).append('\n');
+    }
+
+    /**
+     * Records the deadline each student's access should end at, in epoch milliseconds.
+     */
+    public synchronized void shared(Map<Student, Long> deadlines) throws IOException {
+        if (deadlines.isEmpty())
+            return;
+        StringBuilder sb = new StringBuilder();
+        deadlines.forEach((s, deadline) -> {
+            share(sb, s.getId(), deadline);
+            outstanding.put(s.getId(), deadline);
+        });
+        file.append(sb, deadlines.size());
+    }
+
+    /**
+     * Records that the students no longer have a deadline to enforce.
+     */
+    public synchronized void done(Collection<Student> students) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int count = 0;
+        for (Student s : students) {
+            if (outstanding.remove(s.getId()) != null) {
+                sb.append("DONE\t").append(s.getId()).append('\n');
+                count++;
+            }
+        }
+        if (count > 0)
+            file.append(sb, count);
+    }
+
+    /**
+     * @return the deadline of every timed share not yet finished, keyed by student ID.
+     */
+    public synchronized Map<String, Long> getOutstanding() {
+        return new LinkedHashMap<>(outstanding);
+    }
+
+    public synchronized boolean hasOutstanding() {
+        return !outstanding.isEmpty();
+    }
+}
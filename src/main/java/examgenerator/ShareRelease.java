@@ -0,0 +1,184 @@
+/*
+Shares an exam with the whole class at a set time, as close to the same moment for everyone as possible. Everything
+which can be done ahead of time is: each student's folder is looked up and every permission batch is built as soon as
+the release is prepared, and shortly before the start time the access token is refreshed if it's close to expiring and
+a connection is opened for each batch. At the start time every batch is sent at once.
+
+Each student's access counts from when their grant came back rather than from the start time, so a student whose
+batch was slow (or had to be retried) doesn't lose time for it. Once everyone has access, the spread of those grant
+times across the class is reported.
+ */
+
+package examgenerator;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.Permission;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class ShareRelease implements AutoCloseable {
+    // How long before the start time to warm up. Long enough to refresh a token and open connections, short enough
+    // that they aren't closed again for being idle.
+    private static final long WARM_UP_MILLIS = 15000;
+    // An access token expiring within this long of the warm up is refreshed then, rather than during the release.
+    private static final long TOKEN_MARGIN_SECONDS = 600;
+
+    private final long startAt;
+    private final Collection<Student> students;
+    private final String studentExamsFolderId;
+    private final Drive driveService;
+    private final StudentExamIndex studentExams;
+    private final int batchSize;
+    private final Map<Student, String> examIds;
+    private final Utils.PreparedBatches<Student, Permission> batches;
+
+    /**
+     * Looks up every student's folder and builds the batches granting them access, to be sent at startAt.
+     */
+    public ShareRelease(long startAt, Collection<Student> students, StudentExamIndex studentExams, String studentExamsFolderId, int batchSize, Drive driveService) throws IOException {
+        this.startAt = startAt;
+        this.students = students;
+        this.studentExamsFolderId = studentExamsFolderId;
+        this.driveService = driveService;
+        this.studentExams = studentExams;
+        this.batchSize = batchSize;
+        examIds = studentExams.getExamIds(students);
+        batches = Utils.prepareBatches(driveService, examIds.keySet(), batchSize, ExamGenerator.shareRequest(examIds, driveService));
+        System.out.printf("Prepared %d permission batches for %d students, to be sent at %s.\n", batches.size(), examIds.size(), format(startAt));
+    }
+
+    private static String format(long millis) {
+        return new SimpleDateFormat("HH:mm:ss.SSS").format(new Date(millis));
+    }
+
+    private static void sleepUntil(long millis) throws IOException {
+        long wait;
+        while ((wait = millis - System.currentTimeMillis()) > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting to share.", e);
+            }
+        }
+    }
+
+    /**
+     * Refreshes the access token if it would expire soon, and opens a connection for each batch with a cheap
+     * request, so the release doesn't have to do either. It's only an optimization, so each request is tried once,
+     * failures are just reported, and anything still going at the start time is abandoned.
+     * @return how many connections were warmed up.
+     */
+    private int warmUp() {
+        HttpRequestInitializer initializer = driveService.getRequestFactory().getInitializer();
+        if (initializer instanceof Credential) {
+            Credential credential = (Credential) initializer;
+            Long expiresIn = credential.getExpiresInSeconds();
+            try {
+                if (expiresIn == null || expiresIn < TOKEN_MARGIN_SECONDS)
+                    credential.refreshToken();
+            } catch (IOException e) {
+                System.err.println("Couldn't refresh the access token ahead of sharing, it'll be refreshed when sharing: " + e.getMessage());
+            }
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, batches.size()), r -> {
+            Thread t = new Thread(r, "share-warm-up");
+            t.setDaemon(true);
+            return t;
+        });
+        int warmed = 0;
+        try {
+            List<Future<File>> requests = new ArrayList<>();
+            for (int i = 0; i < batches.size(); i++)
+                requests.add(pool.submit(() -> Utils.executeOnce(driveService.files().get(studentExamsFolderId).setFields("id"))));
+            for (Future<File> request : requests) {
+                try {
+                    request.get(Math.max(0, startAt - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                    warmed++;
+                } catch (ExecutionException e) {
+                    System.err.println("Couldn't warm up a connection: " + e.getCause());
+                } catch (TimeoutException e) {
+                    System.err.println("Stopped warming up at the start time.");
+                    break;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return warmed;
+    }
+
+    /**
+     * Waits for the start time, warming up shortly before it.
+     */
+    public void awaitStart() throws IOException {
+        System.out.println("Waiting until " + format(startAt) + " to share.");
+        sleepUntil(startAt - WARM_UP_MILLIS);
+        int warmed = warmUp();
+        System.out.printf("Warmed up %d of %d connections, sharing at %s.\n", warmed, batches.size(), format(startAt));
+        sleepUntil(startAt);
+    }
+
+    /**
+     * Grants every student access at once, recording the grants in the ledger. Call awaitStart first.
+     * @return when each student who was granted access got it.
+     */
+    public Map<Student, Long> release(PermissionLedger ledger) throws IOException {
+        Map<Student, Permission> granted;
+        try {
+            granted = batches.execute();
+        } finally {
+            close();
+        }
+        ledger.granted(granted, examIds);
+
+        Map<Student, Long> grantedAt = new LinkedHashMap<>();
+        for (Student s : granted.keySet())
+            grantedAt.put(s, batches.getCompletedAt().get(s));
+        printSpread(grantedAt);
+
+        // Anyone whose indexed folder turned out to be gone gets access late rather than not at all.
+        Map<Student, Permission> regranted = ExamGenerator.regrant(examIds.keySet(), granted.keySet(), studentExams, ledger, batchSize, driveService);
+        long now = System.currentTimeMillis();
+        regranted.keySet().forEach(s -> grantedAt.put(s, now));
+        return grantedAt;
+    }
+
+    /**
+     * Stops the threads waiting to send the batches, if they weren't sent.
+     */
+    @Override
+    public void close() {
+        batches.close();
+    }
+
+    private void printSpread(Map<Student, Long> grantedAt) {
+        if (grantedAt.isEmpty()) {
+            System.out.println("No student was granted access.");
+            return;
+        }
+        long[] lags = grantedAt.values().stream().mapToLong(t -> t - startAt).sorted().toArray();
+        System.out.printf("Shared %d of %d exams. First access %s, last %s: a spread of %.2f seconds. Half had access within %.2f seconds of the start time, 95%% within %.2f seconds.\n",
+                grantedAt.size(), students.size(), format(startAt + lags[0]), format(startAt + lags[lags.length - 1]),
+                (lags[lags.length - 1] - lags[0]) / 1e3, percentile(lags, 0.5) / 1e3, percentile(lags, 0.95) / 1e3);
+    }
+
+    private static long percentile(long[] sorted, double q) {
+        return sorted[Math.max(0, (int) Math.ceil(q * sorted.length) - 1)];
+    }
+}
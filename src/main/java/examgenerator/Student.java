@@ -1,3 +1,5 @@
+package examgenerator;
+
 import java.util.Optional;
 
 public class Student {
@@ -39,4 +41,15 @@ public class Student {
     public Optional<Integer> getOverrideTime(){
         return overrideTime;
     }
+
+    // Student IDs are unique, so they alone identify a student.
+    @Override
+    public boolean equals(Object o){
+        return o instanceof Student && id.equals(((Student) o).id);
+    }
+
+    @Override
+    public int hashCode(){
+        return id.hashCode();
+    }
 }
@@ -0,0 +1,187 @@
+/*
+An index from each student to their exam folder inside an exam's Student Exams folder. It's built from a single
+paginated listing of that folder and cached locally, where it's reused for as long as the Student Exams folder's
+modifiedTime is unchanged. Deleting or trashing a student's folder doesn't always change that modifiedTime, so a request
+which fails on an indexed folder has it checked, and the index is rebuilt if the folder is gone.
+ */
+
+package examgenerator;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.util.Key;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class StudentExamIndex {
+    static final int PAGE_SIZE = 1000;
+
+    private final String studentExamsFolderId;
+    private final Drive driveService;
+    private final Map<String, String> examIds = new ConcurrentHashMap<>();
+
+    public static class Cached extends GenericJson {
+        @Key
+        private String modifiedTime;
+
+        @Key
+        private Map<String, String> examIds;
+    }
+
+    private StudentExamIndex(String studentExamsFolderId, Drive driveService) {
+        this.studentExamsFolderId = studentExamsFolderId;
+        this.driveService = driveService;
+    }
+
+    private static String cacheName(String studentExamsFolderId) {
+        return "student-exams-" + studentExamsFolderId + ".json";
+    }
+
+    /**
+     * Loads the index from the local cache if the Student Exams folder hasn't changed since it was written, otherwise
+     * rebuilds it from Drive.
+     */
+    public static StudentExamIndex load(String studentExamsFolderId, Drive driveService) throws IOException {
+        StudentExamIndex index = new StudentExamIndex(studentExamsFolderId, driveService);
+
+        String modifiedTime = index.getModifiedTime();
+        Cached cached = LocalCache.read(cacheName(studentExamsFolderId), Cached.class);
+        if (cached != null && cached.examIds != null && modifiedTime.equals(cached.modifiedTime)) {
+            index.examIds.putAll(cached.examIds);
+            System.out.println("Loaded " + index.examIds.size() + " student exam folders from the local cache.");
+        } else {
+            index.refresh(modifiedTime);
+        }
+        return index;
+    }
+
+    private String getModifiedTime() throws IOException {
+        File folder = Utils.executeWithBackoff(driveService.files().get(studentExamsFolderId)
+                .setFields("modifiedTime"));
+        return folder.getModifiedTime().toStringRfc3339();
+    }
+
+    private synchronized void refresh(String modifiedTime) throws IOException {
+        Map<String, String> listed = new HashMap<>();
+        String pageToken = null;
+        do {
+            FileList result = Utils.executeWithBackoff(driveService.files().list()
+                    .setQ("parents = '" + studentExamsFolderId + "' and mimeType = 'application/vnd.google-apps.folder' and trashed = false")
+                    .setSpaces("drive")
+                    .setPageSize(PAGE_SIZE)
+                    .setFields("nextPageToken, files(id, name)")
+                    .setPageToken(pageToken));
+            for (File f : result.getFiles()) {
+                listed.put(f.getName(), f.getId());
+            }
+            pageToken = result.getNextPageToken();
+        } while (pageToken != null);
+
+        examIds.clear();
+        examIds.putAll(listed);
+        System.out.println("Indexed " + examIds.size() + " student exam folders.");
+        save(modifiedTime);
+    }
+
+    private void save(String modifiedTime) throws IOException {
+        Cached cached = new Cached();
+        cached.modifiedTime = modifiedTime;
+        cached.examIds = new HashMap<>(examIds);
+        LocalCache.write(cacheName(studentExamsFolderId), cached);
+    }
+
+    /**
+     * @return the ID of the student's exam folder as currently indexed, or null if it isn't, without going to Drive.
+     */
+    public String lookup(Student student) {
+        return examIds.get(student.toString());
+    }
+
+    /**
+     * Adds a newly created exam folder to the index.
+     */
+    public void put(Student student, String examId) {
+        examIds.put(student.toString(), examId);
+    }
+
+    /**
+     * @return the ID of the student's exam folder, re-listing the Student Exams folder once if the student isn't
+     * indexed yet, or null if they have no exam folder at all.
+     */
+    public String getExamId(Student student) throws IOException {
+        String examId = examIds.get(student.toString());
+        if (examId == null) {
+            synchronized (this) {
+                examId = examIds.get(student.toString());
+                if (examId == null) {
+                    refresh(getModifiedTime());
+                    examId = examIds.get(student.toString());
+                }
+            }
+        }
+        return examId;
+    }
+
+    /**
+     * Checks whether the indexed folders of students whose requests failed still exist. If any are gone (a 404 from
+     * Drive, or trashed), they're evicted and the Student Exams folder is re-listed once.
+     * @return each of those students whose folder was gone, with the ID of their folder now, or null if they have none.
+     */
+    public synchronized Map<Student, String> recheck(Collection<Student> failed) throws IOException {
+        Map<Student, String> indexed = new LinkedHashMap<>();
+        for (Student s : failed) {
+            String examId = examIds.get(s.toString());
+            if (examId != null)
+                indexed.put(s, examId);
+        }
+        if (indexed.isEmpty())
+            return Collections.emptyMap();
+
+        // A folder which isn't found is reported by the batch and left out.
+        Map<Student, File> found = Utils.executeInBatches(driveService, indexed.keySet(), Utils.MAX_BATCH_SIZE,
+                s -> driveService.files().get(indexed.get(s)).setFields("id, trashed"));
+        List<Student> gone = new ArrayList<>();
+        indexed.forEach((s, examId) -> {
+            File folder = found.get(s);
+            if (folder == null || Boolean.TRUE.equals(folder.getTrashed())) {
+                examIds.remove(s.toString(), examId);
+                gone.add(s);
+            }
+        });
+        if (gone.isEmpty())
+            return Collections.emptyMap();
+
+        System.out.println(gone.size() + " indexed student exam folders no longer exist, re-listing the Student Exams folder.");
+        refresh(getModifiedTime());
+        Map<Student, String> current = new LinkedHashMap<>();
+        for (Student s : gone)
+            current.put(s, examIds.get(s.toString()));
+        return current;
+    }
+
+    /**
+     * Looks up the exam folder of every student, re-listing the Student Exams folder at most once for students who
+     * aren't indexed yet. Any student who doesn't have an exam folder is reported and left out.
+     */
+    public Map<Student, String> getExamIds(Iterable<Student> students) throws IOException {
+        Map<Student, String> found = new LinkedHashMap<>();
+        boolean refreshed = false;
+        for (Student s : students) {
+            String examId = examIds.get(s.toString());
+            if (examId == null && !refreshed) {
+                refresh(getModifiedTime());
+                refreshed = true;
+                examId = examIds.get(s.toString());
+            }
+            if (examId == null)
+                System.err.println("No exam folder found for " + s);
+            else
+                found.put(s, examId);
+        }
+        return found;
+    }
+}
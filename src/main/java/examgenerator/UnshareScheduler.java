@@ -0,0 +1,233 @@
+/*
+Revokes access to each student's exam at their own deadline. Deadlines are kept in a DelayQueue ordered by time, and a
+single dispatcher thread waits on the earliest one, so revocation happens to the second rather than on a polling tick.
+Everyone due at the same moment is revoked as one group, and groups are revoked on a separate pool of threads so a
+slow group never holds back a later deadline.
+
+A student whose revocation fails is tried again every RETRY_MILLIS, unless Drive refused it outright (their folder
+can't be read, say), which trying again won't fix. Those students are dropped from the schedule and reported, and the
+caller leaves their deadline in the journal for the next run.
+ */
+
+package examgenerator;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class UnshareScheduler {
+    private static final int REVOKE_THREADS = 4;
+    private static final long RETRY_MILLIS = 10000;
+
+    /**
+     * Removes the students' access to their exams.
+     */
+    public interface Revoker {
+        /**
+         * Adds to rejected any student Drive refused to revoke, who isn't retried.
+         * @return the students who no longer have access. Any others, bar the rejected, are retried later.
+         */
+        Set<Student> revoke(Collection<Student> students, Set<Student> rejected) throws IOException;
+    }
+
+    private static final class Deadline implements Delayed {
+        private final Student student;
+        private final long deadline;  // When access should end, in epoch milliseconds.
+        private final long due;       // When to next try revoking, later than deadline after a failure.
+
+        Deadline(Student student, long deadline, long due) {
+            this.student = student;
+            this.deadline = deadline;
+            this.due = due;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(due - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(due, ((Deadline) o).due);
+        }
+    }
+
+    private final Revoker revoker;
+    private final DelayQueue<Deadline> deadlines = new DelayQueue<>();
+    private final ExecutorService revokers = Executors.newFixedThreadPool(REVOKE_THREADS);
+    private final Map<Student, Deadline> current = new ConcurrentHashMap<>();
+    private final Map<Student, Long> lagMillis = new ConcurrentHashMap<>();
+    private final Map<Student, Long> unrevoked = new ConcurrentHashMap<>();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final Object done = new Object();
+    private Thread dispatcher;
+
+    public UnshareScheduler(Revoker revoker) {
+        this.revoker = revoker;
+    }
+
+    /**
+     * Schedules the student's access to be revoked at the given wall-clock time, in epoch milliseconds, replacing any
+     * deadline they already had. A deadline in the past is revoked right away.
+     */
+    public void schedule(Student student, long deadline) {
+        Deadline d = new Deadline(student, deadline, deadline);
+        if (current.put(student, d) == null)
+            outstanding.incrementAndGet();
+        deadlines.add(d);
+    }
+
+    /**
+     * Drops the student's deadline, if they have one, without revoking anything.
+     */
+    public void cancel(Student student) {
+        if (current.remove(student) != null)
+            finished(1);
+    }
+
+    /**
+     * @return the deadline of each student still to be revoked, in epoch milliseconds.
+     */
+    public Map<Student, Long> getDeadlines() {
+        Map<Student, Long> pending = new HashMap<>();
+        current.forEach((student, d) -> pending.put(student, d.deadline));
+        return pending;
+    }
+
+    public boolean hasPending() {
+        return outstanding.get() > 0;
+    }
+
+    private void finished(int count) {
+        if (outstanding.addAndGet(-count) == 0) {
+            synchronized (done) {
+                done.notifyAll();
+            }
+        }
+    }
+
+    public synchronized void start() {
+        if (dispatcher != null)
+            return;
+        dispatcher = new Thread(this::dispatch, "unshare-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    private void dispatch() {
+        try {
+            while (true) {
+                List<Deadline> due = new ArrayList<>();
+                due.add(deadlines.take());
+                deadlines.drainTo(due);
+                // Deadlines which were since replaced or cancelled are left in the queue, skip them here.
+                due.removeIf(d -> current.get(d.student) != d);
+                if (!due.isEmpty())
+                    revokers.submit(() -> revoke(due));
+            }
+        } catch (InterruptedException e) {
+            // Shutting down.
+        }
+    }
+
+    private void revoke(List<Deadline> due) {
+        List<Student> students = new ArrayList<>();
+        for (Deadline d : due)
+            students.add(d.student);
+
+        System.out.printf("%s - Stopping sharing to: %s\n", new SimpleDateFormat("HH:mm:ss").format(new Date()), students);
+        Set<Student> revoked;
+        Set<Student> rejected = new HashSet<>();
+        try {
+            revoked = revoker.revoke(students, rejected);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Failed to stop sharing to " + students + ", retrying: " + e.getMessage());
+            retry(due);
+            return;
+        }
+
+        long revokedAt = System.currentTimeMillis();
+        int count = 0;
+        List<Deadline> failed = new ArrayList<>();
+        List<Student> givenUp = new ArrayList<>();
+        for (Deadline d : due) {
+            if (rejected.contains(d.student) && !revoked.contains(d.student)) {
+                if (current.remove(d.student, d)) {
+                    unrevoked.put(d.student, d.deadline);
+                    givenUp.add(d.student);
+                    count++;
+                }
+                continue;
+            }
+            if (!revoked.contains(d.student)) {
+                failed.add(d);
+                continue;
+            }
+            lagMillis.put(d.student, revokedAt - d.deadline);
+            System.out.printf("%s revoked %.1f s after deadline.\n", d.student, (revokedAt - d.deadline) / 1000.0);
+            if (current.remove(d.student, d))
+                count++;
+        }
+        finished(count);
+        if (!givenUp.isEmpty())
+            System.err.println("Couldn't revoke access for " + givenUp.size() + " students, not retrying until the next run: " + givenUp);
+        if (!failed.isEmpty()) {
+            System.err.println("Failed to stop sharing to " + failed.size() + " students, retrying in " + RETRY_MILLIS / 1000 + " seconds.");
+            retry(failed);
+        }
+    }
+
+    /**
+     * Schedules another try at revoking each of the deadlines, unless it was since replaced or cancelled.
+     */
+    private void retry(List<Deadline> failed) {
+        for (Deadline d : failed) {
+            Deadline retry = new Deadline(d.student, d.deadline, System.currentTimeMillis() + RETRY_MILLIS);
+            if (current.replace(d.student, d, retry))
+                deadlines.add(retry);
+        }
+    }
+
+    /**
+     * Blocks until every scheduled student has been revoked, then stops the scheduler's threads.
+     */
+    public void awaitCompletion() throws InterruptedException {
+        synchronized (done) {
+            while (outstanding.get() > 0)
+                done.wait();
+        }
+        shutdown();
+    }
+
+    public void shutdown() {
+        if (dispatcher != null)
+            dispatcher.interrupt();
+        revokers.shutdown();
+    }
+
+    /**
+     * @return the time from each revoked student's deadline to their access actually being removed.
+     */
+    public Map<Student, Long> getLagMillis() {
+        return Collections.unmodifiableMap(lagMillis);
+    }
+
+    /**
+     * @return the deadline of each student who was given up on, whose access is still to be revoked by a later run.
+     */
+    public Map<Student, Long> getUnrevoked() {
+        return Collections.unmodifiableMap(unrevoked);
+    }
+
+    public void printLagSummary() {
+        LongSummaryStatistics stats = lagMillis.values().stream().mapToLong(Long::longValue).summaryStatistics();
+        if (stats.getCount() > 0)
+            System.out.printf("Deadline to revoked for %d students: mean %.1f s, max %.1f s.\n",
+                    stats.getCount(), stats.getAverage() / 1000.0, stats.getMax() / 1000.0);
+        if (!unrevoked.isEmpty())
+            System.out.printf("%d students still have access, their deadlines are left in the journal for the next run: %s\n",
+                    unrevoked.size(), unrevoked.keySet());
+    }
+}
@@ -0,0 +1,541 @@
+package examgenerator;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.googleapis.services.AbstractGoogleClientRequest;
+import com.google.api.client.googleapis.services.json.AbstractGoogleJsonClientRequest;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntSupplier;
+import java.util.stream.Collectors;
+
+public class Utils {
+    // The Drive batch endpoint accepts at most this many calls per batch.
+    public static final int MAX_BATCH_SIZE = 100;
+
+    // How many parents to OR together in one files.list query.
+    static final int PARENTS_PER_QUERY = 40;
+
+    // Drive's documented per-user quota is 1,000 requests per 100 seconds.
+    public static final double DEFAULT_RATE_LIMIT = 10.0;
+
+    private static final long BASE_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 64000;
+    private static final int MAX_TRIES = 10;
+
+    // Caps the number of requests outstanding against Google at once, across all worker threads.
+    private static InFlightLimit inFlight = new InFlightLimit(Integer.MAX_VALUE);
+
+    // Shared by every request in the process, whichever service it's for.
+    private static RateLimiter rateLimiter = new RateLimiter(DEFAULT_RATE_LIMIT);
+
+    public static void setMaxInFlight(int maxInFlight) {
+        inFlight = new InFlightLimit(maxInFlight);
+    }
+
+    public static int getMaxInFlight() {
+        return inFlight.getMax();
+    }
+
+    public static void setRateLimit(double requestsPerSecond) {
+        rateLimiter = new RateLimiter(requestsPerSecond);
+    }
+
+    public static double getRateLimit() {
+        return rateLimiter.getMaxRate();
+    }
+
+    private static void acquireRate(int permits) throws InterruptedIOException {
+        long start = System.nanoTime();
+        rateLimiter.acquire(permits);
+        ApiMetrics.waitedForRateLimit(System.nanoTime() - start);
+    }
+
+    /**
+     * One attempt at a request: executing it, downloading its media or uploading.
+     */
+    private interface Call<T> {
+        T execute() throws IOException;
+    }
+
+    /**
+     * Builds the request for an attempt at an upload.
+     */
+    public interface UploadRequest<T> {
+        AbstractGoogleClientRequest<T> build() throws IOException;
+    }
+
+    private static <T> T executeLimited(String operation, IntSupplier status, Call<T> call) throws IOException {
+        acquireRate(1);
+        InFlightLimit permits = inFlight;
+        permits.acquire();
+        long sent = ApiMetrics.sent();
+        try {
+            T result = call.execute();
+            ApiMetrics.record(operation, sent, status.getAsInt());
+            return result;
+        } catch (HttpResponseException e) {
+            ApiMetrics.record(operation, sent, e.getStatusCode());
+            throw e;
+        } catch (IOException e) {
+            ApiMetrics.record(operation, sent, ApiMetrics.NO_RESPONSE);
+            throw e;
+        } finally {
+            ApiMetrics.received();
+            permits.release();
+        }
+    }
+
+    /**
+     * Whether a failed call is worth repeating: rate limiting (429, or 403 with a rate limit reason) and server errors
+     * are, anything else (bad requests, missing files, permissions) will just fail again.
+     */
+    static boolean isRetryable(int code, String reason) {
+        return code == 429 || code >= 500 || isRateLimited(code, reason);
+    }
+
+    static boolean isRateLimited(int code, String reason) {
+        return code == 429 || (code == 403 && ("rateLimitExceeded".equals(reason) || "userRateLimitExceeded".equals(reason)));
+    }
+
+    private static String reason(GoogleJsonError error) {
+        if (error == null || error.getErrors() == null || error.getErrors().isEmpty())
+            return null;
+        return error.getErrors().get(0).getReason();
+    }
+
+    private static int code(IOException e) {
+        return ((HttpResponseException) e).getStatusCode();
+    }
+
+    private static String reason(IOException e) {
+        return e instanceof GoogleJsonResponseException ? reason(((GoogleJsonResponseException) e).getDetails()) : null;
+    }
+
+    /**
+     * How long to wait before the given retry: the server's Retry-After if it sent one, otherwise exponential backoff
+     * with jitter so that parallel callers don't all retry in lockstep.
+     */
+    private static long backoffMillis(int attempt, HttpHeaders responseHeaders) {
+        if (responseHeaders != null && responseHeaders.getRetryAfter() != null) {
+            try {
+                return Long.parseLong(responseHeaders.getRetryAfter().trim()) * 1000;
+            } catch (NumberFormatException e) {
+                // An HTTP date rather than a number of seconds, fall back to our own backoff.
+            }
+        }
+        long ceiling = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt, 16));
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
+    /**
+     * Backs off before a retry. Being interrupted ends the retries, rather than cutting every later backoff short.
+     */
+    private static void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while backing off before a retry.");
+        }
+    }
+
+    /**
+     * Executes any Google API request, subject to the shared rate limit and in-flight cap. Rate limiting, server
+     * errors and network failures are retried with jittered exponential backoff, and other errors are thrown
+     * immediately.
+     */
+    public static <T> T executeWithBackoff(AbstractGoogleClientRequest<T> request) throws IOException {
+        return executeWithBackoff(ApiMetrics.operation(request), request::getLastStatusCode, request::execute);
+    }
+
+    /**
+     * Executes the request once, under the rate limit and request cap, without retrying it if it fails. For requests
+     * which are only worth making if they're quick, like warming up a connection.
+     */
+    public static <T> T executeOnce(AbstractGoogleClientRequest<T> request) throws IOException {
+        return executeLimited(ApiMetrics.operation(request), request::getLastStatusCode, request::execute);
+    }
+
+    /**
+     * Downloads the request's media (a file's content, or an export of it) to the given file, retrying just as
+     * {@link #executeWithBackoff(AbstractGoogleClientRequest)} does. The file is overwritten by each attempt.
+     */
+    public static void downloadWithBackoff(AbstractGoogleClientRequest<?> request, Path file) throws IOException {
+        request.set("alt", "media");
+        executeWithBackoff(ApiMetrics.operation(request), request::getLastStatusCode, () -> {
+            HttpResponse response = request.executeUnparsed();
+            try (InputStream in = response.getContent()) {
+                Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                response.disconnect();
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Executes a request which uploads media, retrying just as
+     * {@link #executeWithBackoff(AbstractGoogleClientRequest)} does. Each attempt gets a new request, since an upload
+     * can't be executed again once it has started.
+     */
+    public static <T> T uploadWithBackoff(UploadRequest<T> upload) throws IOException {
+        AtomicReference<AbstractGoogleClientRequest<T>> request = new AtomicReference<>(upload.build());
+        AtomicBoolean started = new AtomicBoolean();
+        return executeWithBackoff(ApiMetrics.operation(request.get()), () -> request.get().getLastStatusCode(), () -> {
+            if (started.getAndSet(true))
+                request.set(upload.build());
+            return request.get().execute();
+        });
+    }
+
+    private static <T> T executeWithBackoff(String operation, IntSupplier status, Call<T> call) throws IOException {
+        int count = 0;
+        while (true) {
+            try {
+                T result = executeLimited(operation, status, call);
+                rateLimiter.succeeded();
+                return result;
+            } catch (HttpResponseException e) {
+                if (!isRetryable(code(e), reason(e)) || ++count == MAX_TRIES) throw e;
+                long backoff = backoffMillis(count, e.getHeaders());
+                if (isRateLimited(code(e), reason(e)))
+                    rateLimiter.throttled(backoff);
+                System.out.println("Failure: " + e.getStatusCode() + " " + e.getStatusMessage() + " Backing off " + backoff + " ms");
+                ApiMetrics.retried(operation);
+                sleep(backoff);
+            } catch (IOException e) {
+                // Connection resets, timeouts and the like. An interrupted caller, whether it was waiting for the rate
+                // limit or on the request itself, gives up instead.
+                if (Thread.currentThread().isInterrupted() || ++count == MAX_TRIES) throw e;
+                long backoff = backoffMillis(count, null);
+                System.out.println("Failure: " + e.getMessage() + " Backing off " + backoff + " ms");
+                ApiMetrics.retried(operation);
+                sleep(backoff);
+            }
+        }
+    }
+
+    /**
+     * Builds the request to batch for a single item.
+     */
+    public interface BatchItemRequest<I, T> {
+        AbstractGoogleJsonClientRequest<T> build(I item) throws IOException;
+    }
+
+    public static <I, T> Map<I, T> executeInBatches(Drive driveService, Collection<I> items, int batchSize, BatchItemRequest<I, T> request) throws IOException {
+        return executeInBatches(driveService, items, batchSize, 1, request);
+    }
+
+    /**
+     * Executes one request per item using Drive batch requests of up to batchSize calls each, with up to parallelism
+     * batches outstanding at once. Items whose request fails with a retryable error are collected and re-queued on
+     * their own after a backoff, so successful calls are never repeated. Other failures are reported right away.
+     * @return the result of each item which eventually succeeded. Items which fail permanently or still fail after
+     * all retries are reported and left out.
+     */
+    public static <I, T> Map<I, T> executeInBatches(Drive driveService, Collection<I> items, int batchSize, int parallelism, BatchItemRequest<I, T> request) throws IOException {
+        return executeInBatches(driveService, items, batchSize, parallelism, request, new HashSet<>());
+    }
+
+    /**
+     * As {@link #executeInBatches(Drive, Collection, int, int, BatchItemRequest)}, also adding to rejected each item
+     * which failed with an error retrying won't fix, as opposed to one which still failed after every retry.
+     */
+    public static <I, T> Map<I, T> executeInBatches(Drive driveService, Collection<I> items, int batchSize, int parallelism, BatchItemRequest<I, T> request, Set<I> rejected) throws IOException {
+        BatchRun<I, T> run = new BatchRun<>(driveService, batchSize, request);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, parallelism));
+        try {
+            return run.execute(run.build(new ArrayList<>(items), 1), pool, true);
+        } finally {
+            pool.shutdown();
+            rejected.addAll(run.rejected);
+        }
+    }
+
+    /**
+     * Builds the batches for every item now, to be sent later all at once by {@link PreparedBatches#execute}.
+     */
+    public static <I, T> PreparedBatches<I, T> prepareBatches(Drive driveService, Collection<I> items, int batchSize, BatchItemRequest<I, T> request) throws IOException {
+        BatchRun<I, T> run = new BatchRun<>(driveService, batchSize, request);
+        return new PreparedBatches<>(run, run.build(new ArrayList<>(items), 1), items.size());
+    }
+
+    /**
+     * Builds the batches executeInBatches would send for the items, callbacks and all, without sending them.
+     */
+    static <I, T> List<BatchRequest> buildBatches(Drive driveService, Collection<I> items, int batchSize, BatchItemRequest<I, T> request) throws IOException {
+        BatchRun<I, T> run = new BatchRun<>(driveService, batchSize, request);
+        return run.build(new ArrayList<>(items), 1).stream().map(batch -> batch.batch).collect(Collectors.toList());
+    }
+
+    /**
+     * Batches built ahead of time, with a thread already started for each, so sending them takes as little as
+     * possible once it's time to. The threads are stopped once the batches are sent, or by close if they never are.
+     */
+    public static final class PreparedBatches<I, T> implements AutoCloseable {
+        private final BatchRun<I, T> run;
+        private final List<BatchRun.Batch<I>> batches;
+        private final int items;
+        private final ThreadPoolExecutor pool;
+
+        private PreparedBatches(BatchRun<I, T> run, List<BatchRun.Batch<I>> batches, int items) {
+            this.run = run;
+            this.batches = batches;
+            this.items = items;
+            int threads = Math.max(1, batches.size());
+            pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+            pool.prestartAllCoreThreads();
+        }
+
+        /**
+         * @return how many batches there are, and so how many requests are sent at once.
+         */
+        public int size() {
+            return batches.size();
+        }
+
+        /**
+         * Sends every batch at once. Rather than waiting on the rate limiter batch by batch, they take all their
+         * tokens up front, going into debt which later calls wait out. Failures are retried as
+         * {@link #executeInBatches} does, and those retries do wait on the rate limiter.
+         * @return the result of each item which eventually succeeded.
+         */
+        public Map<I, T> execute() throws IOException {
+            rateLimiter.borrow(items);
+            try {
+                return run.execute(batches, pool, false);
+            } finally {
+                close();
+            }
+        }
+
+        @Override
+        public void close() {
+            pool.shutdown();
+        }
+
+        /**
+         * @return when the response to each successful item arrived, in milliseconds since the epoch.
+         */
+        public Map<I, Long> getCompletedAt() {
+            return run.completedAt;
+        }
+    }
+
+    /**
+     * One executeInBatches: the batches of each attempt, and what's come back from them.
+     */
+    private static final class BatchRun<I, T> {
+        private final Drive driveService;
+        private final int size;
+        private final BatchItemRequest<I, T> request;
+        // Callbacks run on whichever thread executed the batch. Synchronized maps are used (rather than concurrent
+        // ones) since Void requests succeed with a null result.
+        private final Map<I, T> results = Collections.synchronizedMap(new LinkedHashMap<>());
+        private final Map<I, Long> completedAt = new ConcurrentHashMap<>();
+        private final Map<I, String> failures = Collections.synchronizedMap(new LinkedHashMap<>());
+        private final Set<I> rejected = ConcurrentHashMap.newKeySet();
+        private final List<Long> backoffs = Collections.synchronizedList(new ArrayList<>());
+        private final Map<I, String> operations = new ConcurrentHashMap<>();
+
+        private static final class Batch<I> {
+            final BatchRequest batch;
+            final List<I> chunk;
+            final AtomicLong sent = new AtomicLong();
+
+            Batch(BatchRequest batch, List<I> chunk) {
+                this.batch = batch;
+                this.chunk = chunk;
+            }
+        }
+
+        BatchRun(Drive driveService, int batchSize, BatchItemRequest<I, T> request) {
+            this.driveService = driveService;
+            this.size = Math.max(1, Math.min(batchSize, MAX_BATCH_SIZE));
+            this.request = request;
+        }
+
+        /**
+         * Builds the batches for the given attempt at the pending items.
+         */
+        List<Batch<I>> build(List<I> pending, int attempt) throws IOException {
+            List<Batch<I>> batches = new ArrayList<>();
+            for (int from = 0; from < pending.size(); from += size) {
+                Batch<I> batch = new Batch<>(driveService.batch(), pending.subList(from, Math.min(from + size, pending.size())));
+                for (I item : batch.chunk) {
+                    AbstractGoogleJsonClientRequest<T> itemRequest = request.build(item);
+                    String operation = ApiMetrics.operation(itemRequest);
+                    operations.put(item, operation);
+                    itemRequest.queue(batch.batch, new JsonBatchCallback<T>() {
+                        @Override
+                        public void onSuccess(T t, HttpHeaders responseHeaders) {
+                            ApiMetrics.record(operation, batch.sent.get(), 200);
+                            results.put(item, t);
+                            completedAt.put(item, System.currentTimeMillis());
+                            rateLimiter.succeeded();
+                        }
+
+                        @Override
+                        public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
+                            ApiMetrics.record(operation, batch.sent.get(), e.getCode());
+                            if (isRetryable(e.getCode(), reason(e))) {
+                                failures.put(item, e.getCode() + " " + e.getMessage());
+                                long backoff = backoffMillis(attempt, responseHeaders);
+                                backoffs.add(backoff);
+                                if (isRateLimited(e.getCode(), reason(e)))
+                                    rateLimiter.throttled(backoff);
+                            } else {
+                                System.err.println("Failed: " + item + " " + e.getCode() + " " + e.getMessage());
+                                rejected.add(item);
+                            }
+                        }
+                    });
+                }
+                batches.add(batch);
+            }
+            return batches;
+        }
+
+        /**
+         * Sends the batches on the pool, then rebuilds and resends whatever failed until everything has succeeded
+         * or run out of tries. acquire is whether the first batches still have to wait on the rate limiter.
+         */
+        Map<I, T> execute(List<Batch<I>> batches, ExecutorService pool, boolean acquire) throws IOException {
+            int count = 0;
+            while (true) {
+                boolean acquireRate = acquire;
+                List<Future<Void>> sent = new ArrayList<>();
+                for (Batch<I> batch : batches)
+                    sent.add(pool.submit(() -> executeBatch(batch, acquireRate)));
+                for (Future<Void> batch : sent) {
+                    try {
+                        batch.get();
+                    } catch (ExecutionException e) {
+                        throw new IOException(e.getCause());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while executing batches.", e);
+                    }
+                }
+
+                List<I> pending = new ArrayList<>(failures.keySet());
+                if (pending.isEmpty())
+                    break;
+                if (++count == MAX_TRIES) {
+                    failures.forEach((item, error) -> System.err.println("Failed: " + item + " " + error));
+                    break;
+                }
+                pending.forEach(item -> ApiMetrics.retried(operations.get(item)));
+                long backoff = backoffs.stream().mapToLong(Long::longValue).max().orElse(backoffMillis(count, null));
+                System.out.println("Failure: " + pending.size() + " batched requests failed. Backing off " + backoff + " ms then re-queuing them.");
+                sleep(backoff);
+
+                failures.clear();
+                backoffs.clear();
+                batches = build(pending, count + 1);
+                acquire = true;
+            }
+            return results;
+        }
+
+        private Void executeBatch(Batch<I> batch, boolean acquire) throws InterruptedIOException {
+            // Every call inside a batch counts against the quota on its own.
+            if (acquire)
+                acquireRate(batch.chunk.size());
+            InFlightLimit permits = inFlight;
+            permits.acquire();
+            ApiMetrics.batchSent();
+            batch.sent.set(ApiMetrics.sent());
+            try {
+                batch.batch.execute();
+            } catch (IOException e) {
+                // The batch as a whole didn't go through, so anything without a response has to be retried.
+                for (I item : batch.chunk) {
+                    if (!results.containsKey(item) && !failures.containsKey(item)) {
+                        ApiMetrics.record(operations.get(item), batch.sent.get(), ApiMetrics.NO_RESPONSE);
+                        failures.put(item, e.getMessage());
+                    }
+                }
+            } finally {
+                ApiMetrics.received();
+                permits.release();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Lists the files directly inside each of the given folders which also match the query (which may be null),
+     * following every page. Several folders are covered by each files.list call, and up to parallelism calls are
+     * made at once. fields is the list of file fields wanted; parents is always included.
+     * @return the matching files in each folder, keyed by folder ID. Every folder gets an entry, even if empty.
+     */
+    public static Map<String, List<File>> listChildren(Collection<String> folderIds, String query, String fields, int parallelism, Drive driveService) throws IOException {
+        Map<String, List<File>> children = new ConcurrentHashMap<>();
+        List<String> ids = new ArrayList<>(new LinkedHashSet<>(folderIds));
+        for (String id : ids)
+            children.put(id, Collections.synchronizedList(new ArrayList<>()));
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, parallelism));
+        try {
+            List<Future<Void>> listings = new ArrayList<>();
+            for (int from = 0; from < ids.size(); from += PARENTS_PER_QUERY) {
+                String parents = ids.subList(from, Math.min(from + PARENTS_PER_QUERY, ids.size())).stream()
+                        .map(id -> "'" + id + "' in parents")
+                        .collect(Collectors.joining(" or "));
+                String q = "(" + parents + ") and trashed = false" + (query == null ? "" : " and " + query);
+                listings.add(pool.submit(() -> {
+                    String pageToken = null;
+                    do {
+                        FileList result = executeWithBackoff(driveService.files().list()
+                                .setQ(q)
+                                .setSpaces("drive")
+                                .setPageSize(1000)
+                                .setFields("nextPageToken, files(parents, " + fields + ")")
+                                .setPageToken(pageToken));
+                        for (File f : result.getFiles()) {
+                            for (String parent : f.getParents()) {
+                                if (children.containsKey(parent))
+                                    children.get(parent).add(f);
+                            }
+                        }
+                        pageToken = result.getNextPageToken();
+                    } while (pageToken != null);
+                    return null;
+                }));
+            }
+            for (Future<Void> listing : listings) {
+                try {
+                    listing.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while listing folders.", e);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return children;
+    }
+}
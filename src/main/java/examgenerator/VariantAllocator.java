@@ -0,0 +1,138 @@
+/*
+Decides which variant of each question every student gets. Assignments are balanced, so each variant of a question is
+given to the same number of students (give or take one), and reproducible: they depend only on the exam's seed and the
+students' positions in the roster ordered by ID, so any student's exam can be worked out again without reading
+GeneratedVariants. Adding students to the roster later shifts the positions of those after them, which is why
+generation still goes by GeneratedVariants for anyone already recorded there.
+
+There are two ways to balance:
+- By default each question's column of assignments is a balanced sequence (0, 1, ..., V-1, 0, 1, ...) shuffled on its
+  own, so a student's combination of variants is random.
+- With spread, students are taken in consecutive blocks of V (one per variant) and each block gets its own shuffle of
+  the V variants. Neighbouring IDs, who likely sit near each other, then never share a variant of a question within a
+  block, and their combinations differ throughout.
+
+Assignments for every student are held in one int array, row-major by student.
+ */
+
+package examgenerator;
+
+import java.util.*;
+
+public class VariantAllocator {
+    private final long seed;
+    private final int[] variantCounts;
+    private final boolean spread;
+
+    public VariantAllocator(long seed, int[] variantCounts, boolean spread) {
+        this.seed = seed;
+        this.variantCounts = variantCounts.clone();
+        this.spread = spread;
+    }
+
+    /**
+     * @return a seed derived from the exam folder's ID, so the same exam always gets the same seed.
+     */
+    public static long seedFor(String examFolderId) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < examFolderId.length(); i++) {
+            h ^= examFolderId.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    // The SplitMix64 finalizer.
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private long stream(int question, int block) {
+        return mix(mix(seed + question) + block);
+    }
+
+    /**
+     * Fisher-Yates shuffles the first length values using a SplitMix64 sequence started from state. This is inlined
+     * rather than using SplittableRandom since a generator is needed per block.
+     */
+    private static void shuffle(int[] values, int length, long state) {
+        for (int i = length - 1; i > 0; i--) {
+            state += 0x9e3779b97f4a7c15L;
+            // Maps the top 32 random bits onto [0, i] by multiplication rather than division.
+            int j = (int) (((mix(state) >>> 32) * (i + 1)) >>> 32);
+            int t = values[i];
+            values[i] = values[j];
+            values[j] = t;
+        }
+    }
+
+    /**
+     * @return the variant index of every question for each of the given number of students, with student i's
+     * choices at [i * questions, (i + 1) * questions).
+     */
+    public int[] allocate(int students) {
+        int questions = variantCounts.length;
+        int[] choices = new int[students * questions];
+        int[] column = new int[spread ? 0 : students];
+        int[] block = new int[spread ? Arrays.stream(variantCounts).max().orElse(0) : 0];
+
+        for (int q = 0; q < questions; q++) {
+            int v = variantCounts[q];
+            if (spread) {
+                for (int first = 0; first < students; first += v) {
+                    for (int i = 0; i < v; i++)
+                        block[i] = i;
+                    shuffle(block, v, stream(q, first / v));
+                    for (int i = 0; i < v && first + i < students; i++)
+                        choices[(first + i) * questions + q] = block[i];
+                }
+            } else {
+                for (int i = 0; i < students; i++)
+                    column[i] = i % v;
+                shuffle(column, students, stream(q, 0));
+                for (int i = 0; i < students; i++)
+                    choices[i * questions + q] = column[i];
+            }
+        }
+        return choices;
+    }
+
+    /**
+     * Assigns variants to everyone in the roster, ordering them by ID.
+     */
+    public Allocation allocate(Collection<Student> roster) {
+        List<String> ids = new ArrayList<>();
+        for (Student s : roster)
+            ids.add(s.getId());
+        Collections.sort(ids);
+
+        Map<String, Integer> positions = new HashMap<>();
+        for (int i = 0; i < ids.size(); i++)
+            positions.put(ids.get(i), i);
+        return new Allocation(positions, variantCounts.length, allocate(ids.size()));
+    }
+
+    public static final class Allocation {
+        private final Map<String, Integer> positions;
+        private final int questions;
+        private final int[] choices;
+
+        private Allocation(Map<String, Integer> positions, int questions, int[] choices) {
+            this.positions = positions;
+            this.questions = questions;
+            this.choices = choices;
+        }
+
+        /**
+         * @return the index of the variant of the question the student was allocated.
+         */
+        public int variant(Student student, int question) {
+            Integer position = positions.get(student.getId());
+            if (position == null)
+                throw new IllegalArgumentException(student + " isn't in the roster variants were allocated for.");
+            return choices[position * questions + question];
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+The GeneratedVariants sheet, which records the variants assigned to each student. Rows are written as students are
+assigned, in batches of FLUSH_ROWS rows or every FLUSH_SECONDS seconds, whichever comes first, rather than all at the
+end of generation.
+
+Every row is first appended to a local write-ahead log, forced to disk, along with the sheet row it belongs in. Rows are
+written to their exact positions with values.batchUpdate, so writing one twice is harmless. If the program dies before
+a batch reaches the sheet, the next open of the log writes it from the local copy, so no assignment is lost. Once
+everything has reached the sheet the local log is deleted.
+ */
+
+package examgenerator;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.Key;
+import com.google.api.services.sheets.v4.Sheets;
+import com.google.api.services.sheets.v4.model.BatchUpdateValuesRequest;
+import com.google.api.services.sheets.v4.model.ValueRange;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+public class VariantLog implements AutoCloseable {
+    private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+    private static final String JOURNAL_DIRECTORY_PATH = "journal";
+    private static final String SHEET = "Sheet1";
+    static final int FLUSH_ROWS = 50;
+    private static final int FLUSH_SECONDS = 10;
+
+    public static class Entry extends GenericJson {
+        @Key
+        private Integer row;
+
+        @Key
+        private List<String> values;
+
+        // Rather than a row, marks that every row up to this one has reached the sheet.
+        @Key
+        private Integer flushedThrough;
+    }
+
+    private final String variantSheetId;
+    private final Sheets sheetsService;
+    private final Path file;
+    private final TreeMap<Integer, List<String>> pending = new TreeMap<>();
+    private final Map<String, List<String>> assigned = new HashMap<>();
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "variant-log-flusher");
+        t.setDaemon(true);
+        return t;
+    });
+    private FileChannel channel;
+    private int nextRow;
+
+    private VariantLog(String variantSheetId, Sheets sheetsService) {
+        this.variantSheetId = variantSheetId;
+        this.sheetsService = sheetsService;
+        this.file = Paths.get(JOURNAL_DIRECTORY_PATH, "variants-" + variantSheetId + ".log");
+    }
+
+    /**
+     * Opens the log, first writing any rows a previous run left only in its local copy, then reading what the sheet
+     * already holds.
+     */
+    public static VariantLog open(String variantSheetId, Sheets sheetsService) throws IOException {
+        VariantLog log = new VariantLog(variantSheetId, sheetsService);
+        log.replay();
+        log.flush();
+        log.read();
+        log.flusher.scheduleWithFixedDelay(log::flushQuietly, FLUSH_SECONDS, FLUSH_SECONDS, TimeUnit.SECONDS);
+        return log;
+    }
+
+    /**
+     * @return the variant names recorded for each student, keyed by student ID, from the sheet and any rows a
+     * previous run left only in the local log, without writing to either.
+     */
+    public static Map<String, List<String>> readAssigned(String variantSheetId, Sheets sheetsService) throws IOException {
+        VariantLog log = new VariantLog(variantSheetId, sheetsService);
+        log.flusher.shutdown();
+        log.read();
+        log.readLocal();
+        for (List<String> row : log.pending.values())
+            log.assign(row);
+        return log.assigned;
+    }
+
+    private void replay() throws IOException {
+        Files.createDirectories(file.getParent());
+        readLocal();
+        if (!pending.isEmpty())
+            System.out.println("Recovering " + pending.size() + " GeneratedVariants rows from the local log.");
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Reads the rows in the local log which haven't reached the sheet.
+     */
+    private void readLocal() throws IOException {
+        if (!Files.exists(file))
+            return;
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            Entry e;
+            try {
+                e = JSON_FACTORY.fromString(line, Entry.class);
+            } catch (IOException | IllegalArgumentException ex) {
+                // A torn final line from a crash mid-write.
+                continue;
+            }
+            if (e.flushedThrough != null)
+                pending.headMap(e.flushedThrough, true).clear();
+            else if (e.row != null && e.values != null)
+                pending.put(e.row, e.values);
+        }
+    }
+
+    private void read() throws IOException {
+        ValueRange response = Utils.executeWithBackoff(sheetsService.spreadsheets().values()
+                .get(variantSheetId, SHEET));
+        List<List<Object>> rows = response.getValues() == null ? Collections.emptyList() : response.getValues();
+        for (List<Object> row : rows)
+            assign(row.stream().map(Object::toString).collect(Collectors.toList()));
+        nextRow = rows.size() + 1;
+    }
+
+    private void assign(List<String> row) {
+        if (row.size() > 4)
+            assigned.put(row.get(2), new ArrayList<>(row.subList(4, row.size())));
+    }
+
+    /**
+     * @return the variant names already recorded for each student, keyed by student ID.
+     */
+    public Map<String, List<String>> getAssigned() {
+        return assigned;
+    }
+
+    private void append(Entry e) throws IOException {
+        ByteBuffer buffer = StandardCharsets.UTF_8.encode(JSON_FACTORY.toString(e) + "\n");
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        channel.force(false);
+    }
+
+    /**
+     * Records a student's row. It's on disk locally when this returns, and reaches the sheet with the next flush.
+     */
+    public void add(List<Object> row) throws IOException {
+        boolean full;
+        synchronized (this) {
+            Entry e = new Entry();
+            e.row = nextRow++;
+            e.values = row.stream().map(Object::toString).collect(Collectors.toList());
+            append(e);
+            pending.put(e.row, e.values);
+            full = pending.size() >= FLUSH_ROWS;
+        }
+        if (full)
+            flush();
+    }
+
+    /**
+     * Writes every pending row to the sheet in one batchUpdate, with each run of consecutive rows as one range.
+     */
+    public synchronized void flush() throws IOException {
+        if (pending.isEmpty())
+            return;
+
+        List<ValueRange> data = new ArrayList<>();
+        ValueRange range = null;
+        int last = -1;
+        for (Map.Entry<Integer, List<String>> row : pending.entrySet()) {
+            if (range == null || row.getKey() != last + 1) {
+                range = new ValueRange().setRange(SHEET + "!A" + row.getKey()).setValues(new ArrayList<>());
+                data.add(range);
+            }
+            range.getValues().add(new ArrayList<>(row.getValue()));
+            last = row.getKey();
+        }
+
+        Utils.executeWithBackoff(sheetsService.spreadsheets().values().batchUpdate(variantSheetId, new BatchUpdateValuesRequest()
+                .setValueInputOption("RAW")
+                .setData(data)));
+
+        Entry flushed = new Entry();
+        flushed.flushedThrough = pending.lastKey();
+        append(flushed);
+        pending.clear();
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException e) {
+            System.err.println("Failed to write GeneratedVariants, will retry: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Flushes what's left. The local log is only deleted if everything made it to the sheet.
+     */
+    @Override
+    public void close() throws IOException {
+        flusher.shutdown();
+        synchronized (this) {
+            try {
+                flush();
+            } finally {
+                channel.close();
+            }
+            Files.deleteIfExists(file);
+        }
+    }
+}